@@ -1,10 +1,32 @@
+import org.grouplens.lenskit.hello.BuildParallelism
+import org.grouplens.lenskit.hello.CoratingMemoryBudget
+import org.grouplens.lenskit.hello.CoratingSketchSize
 import org.grouplens.lenskit.hello.DirectAssociationParameter
+import org.grouplens.lenskit.hello.HIRItemRecommender
 import org.grouplens.lenskit.hello.HIRItemScorer
+import org.grouplens.lenskit.hello.ModelPrecision
 import org.grouplens.lenskit.hello.ProximityParameter
+import org.lenskit.api.ItemRecommender
 import org.lenskit.api.ItemScorer
 
 // Configuration of the item scorer.
 bind ItemScorer to HIRItemScorer.class
+bind ItemRecommender to HIRItemRecommender.class
 
 set DirectAssociationParameter to 0.6
-set ProximityParameter to 0.3
\ No newline at end of file
+set ProximityParameter to 0.3
+
+// Threads used to build the model.
+set BuildParallelism to Runtime.runtime.availableProcessors()
+
+// Estimate coratings from MinHash sketches of this size instead of counting
+// them exactly; 0 counts exactly.
+set CoratingSketchSize to 0
+
+// Count coratings out of core, buffering at most this many megabytes of
+// them in memory; 0 counts them in the heap. Not combined with sketches.
+set CoratingMemoryBudget to 0
+
+// Precision of the stored coratings: double, float, or short/byte for
+// 16/8-bit values with a per-row scale.
+set ModelPrecision to "double"
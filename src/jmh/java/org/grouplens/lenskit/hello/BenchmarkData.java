@@ -0,0 +1,212 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic data for the benchmarks. Item popularity is skewed, as in real rating
+ * data, and items draw from a small set of genre combinations. Data is generated
+ * from fixed seeds, so every run of a benchmark sees the same input.
+ */
+
+final class BenchmarkData {
+
+    /**
+     * The number of genres, as in the MovieLens data.
+     */
+    static final int GENRES = 20;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param itemCount The number of items.
+     * @return An index of the items {@code 0} to {@code itemCount - 1}.
+     */
+    static ItemIndex items(int itemCount) {
+        long[] ids = new long[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            ids[i] = i;
+        }
+        return new ItemIndex(ids);
+    }
+
+    /**
+     * Gives each item one to three genres.
+     *
+     * @param index The items.
+     * @return The genre DAO.
+     */
+    static MapItemGenreDAO genres(ItemIndex index) {
+        Random random = new Random(42);
+        final int itemCount = index.size();
+        long[] ids = new long[itemCount];
+        long[] bits = new long[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            ids[i] = index.getId(i);
+            int count = 1 + random.nextInt(3);
+            for (int g = 0; g < count; g++) {
+                bits[i] |= 1L << skewed(random, GENRES);
+            }
+        }
+        return new MapItemGenreDAO(ids, bits, GENRES);
+    }
+
+    /**
+     * Draws the items rated by each user.
+     *
+     * @param userCount The number of users.
+     * @param itemCount The number of items.
+     * @param perUser   The average number of items per user.
+     * @return The sorted item indexes of each user.
+     */
+    static List<IntList> userItems(int userCount, int itemCount, int perUser) {
+        Random random = new Random(7);
+        List<IntList> users = new ArrayList<>(userCount);
+        for (int u = 0; u < userCount; u++) {
+            users.add(draw(random, itemCount, 1 + random.nextInt(2 * perUser)));
+        }
+        return users;
+    }
+
+    /**
+     * Draws distinct items.
+     *
+     * @param random    The random source.
+     * @param itemCount The number of items.
+     * @param count     The number of items to draw.
+     * @return The sorted item indexes.
+     */
+    static IntList draw(Random random, int itemCount, int count) {
+        count = Math.min(count, itemCount);
+        IntSet items = new IntOpenHashSet(count);
+        while (items.size() < count) {
+            items.add(skewed(random, itemCount));
+        }
+        int[] sorted = items.toIntArray();
+        IntArrays.quickSort(sorted);
+        return IntArrayList.wrap(sorted);
+    }
+
+    /**
+     * Creates ratings for the items of each user, with user IDs {@code 0} to
+     * {@code users.size() - 1}.
+     *
+     * @param users The item indexes of each user.
+     * @param index The items.
+     * @return The ratings.
+     */
+    static RatingColumns ratings(List<IntList> users, ItemIndex index) {
+        Random random = new Random(11);
+        int size = 0;
+        for (IntList items : users) {
+            size += items.size();
+        }
+        long[] userIds = new long[size];
+        long[] itemIds = new long[size];
+        double[] values = new double[size];
+        long[] timestamps = new long[size];
+        int row = 0;
+        for (int u = 0; u < users.size(); u++) {
+            IntList items = users.get(u);
+            for (int k = 0; k < items.size(); k++) {
+                userIds[row] = u;
+                itemIds[row] = index.getId(items.getInt(k));
+                values[row] = 0.5 * (1 + random.nextInt(10));
+                timestamps[row] = 1000000000L + random.nextInt(100000000);
+                row++;
+            }
+        }
+        return new RatingColumns(size, userIds, itemIds, values, timestamps);
+    }
+
+    /**
+     * @param items The item IDs.
+     * @return The IDs as a list.
+     */
+    static LongArrayList ids(ItemIndex items) {
+        LongArrayList ids = new LongArrayList(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            ids.add(items.getId(i));
+        }
+        return ids;
+    }
+
+    /**
+     * Writes ratings in the CSV format of {@code data/ratings.csv}.
+     */
+    static void writeRatingsCSV(RatingColumns ratings, File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            for (int i = 0; i < ratings.size(); i++) {
+                out.print(ratings.getUser(i));
+                out.print(',');
+                out.print(ratings.getItem(i));
+                out.print(',');
+                out.print(ratings.getValue(i));
+                out.print(',');
+                out.println(ratings.getTimestamp(i));
+            }
+        }
+    }
+
+    /**
+     * Writes genres in the CSV format of {@code data/genres.csv}.
+     */
+    static void writeGenresCSV(MapItemGenreDAO genres, ItemIndex index, File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            for (int i = 0; i < index.size(); i++) {
+                long item = index.getId(i);
+                long bits = genres.getItemGenreBits(item)[0];
+                out.print(item);
+                out.print(",\"Movie " + item + ", The (1995)\",");
+                for (int g = 0; g < GENRES; g++) {
+                    if (g > 0) {
+                        out.print('|');
+                    }
+                    out.print((bits & (1L << g)) != 0 ? '1' : '0');
+                }
+                out.println();
+            }
+        }
+    }
+
+    /**
+     * Draws a number in {@code [0, n)}, favoring small numbers.
+     */
+    private static int skewed(Random random, int n) {
+        double x = random.nextDouble();
+        return (int) (n * x * x);
+    }
+}
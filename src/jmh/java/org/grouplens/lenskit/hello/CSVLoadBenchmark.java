@@ -0,0 +1,110 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to load rating and genre files, from CSV text and from the
+ * binary rating cache.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CSVLoadBenchmark {
+
+    private static final int ITEM_COUNT = 10000;
+
+    @Param({"100000", "1000000"})
+    public int ratingCount;
+
+    private File ratingsFile;
+
+    private File genresFile;
+
+    private File cacheFile;
+
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() throws IOException {
+        ItemIndex index = BenchmarkData.items(ITEM_COUNT);
+        RatingColumns ratings = BenchmarkData.ratings(
+                BenchmarkData.userItems(ratingCount / 50, ITEM_COUNT, 50), index);
+        ratingsFile = File.createTempFile("ratings", ".csv");
+        BenchmarkData.writeRatingsCSV(ratings, ratingsFile);
+        genresFile = File.createTempFile("genres", ".csv");
+        BenchmarkData.writeGenresCSV(BenchmarkData.genres(index), index, genresFile);
+        cacheFile = File.createTempFile("ratings", ".bin");
+        RatingColumnsFile.write(ratings.sortedByUser(), ratingsFile.length(), ratingsFile.lastModified(),
+                                cacheFile);
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+        ratingsFile.delete();
+        genresFile.delete();
+        cacheFile.delete();
+    }
+
+    @Benchmark
+    public RatingColumns parseRatings() throws IOException {
+        return RatingColumns.fromCSVFile(ratingsFile, 0, null);
+    }
+
+    @Benchmark
+    public RatingColumns parseRatingsParallel() throws IOException {
+        return RatingColumns.fromCSVFile(ratingsFile, 0, pool);
+    }
+
+    @Benchmark
+    public ColumnarRatingDAO mapRatingCache() throws IOException {
+        return RatingColumnsFile.load(cacheFile, ratingsFile);
+    }
+
+    @Benchmark
+    public MapItemGenreDAO parseGenres() throws IOException {
+        return MapItemGenreDAO.fromCSVFile(genresFile, 0, pool);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lenskit.api.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link HIRBatchRecommender} in users per second
+ * as the block size grows, for models on the heap and mapped from a file; a
+ * block size of 1 scores the users one at a time. A block size of 0 is the
+ * baseline: a call to {@link HIRItemScorer#recommend} for each user.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HIRBatchBenchmark {
+
+    private static final int ITEM_COUNT = 5000;
+
+    private static final int USER_COUNT = 256;
+
+    @Param({"0", "1", "16", "64"})
+    public int blockSize;
+
+    @Param({"DOUBLE", "SHORT"})
+    public ValuePrecision precision;
+
+    @Param({"false", "true"})
+    public boolean mapped;
+
+    private HIRBatchRecommender recommender;
+
+    private HIRItemScorer scorer;
+
+    private LongArrayList users;
+
+    private File cache;
+
+    private File modelFile;
+
+    @Setup
+    public void setup() throws IOException {
+        ItemIndex index = BenchmarkData.items(ITEM_COUNT);
+        List<IntList> items = BenchmarkData.userItems(2000, ITEM_COUNT, 40);
+        HIRModel model = HIRModelBuilder.build(index, BenchmarkData.genres(index), items, 1)
+                                        .withPrecision(precision);
+        if (mapped) {
+            modelFile = File.createTempFile("hir-model", ".bin");
+            HIRModelFile.write(model, modelFile);
+            model = HIRModelFile.load(modelFile);
+        }
+        cache = File.createTempFile("ratings", ".bin");
+        RatingColumnsFile.write(BenchmarkData.ratings(items, index).sortedByUser(), 0, 0, cache);
+        ColumnarRatingDAO dao = RatingColumnsFile.load(cache, null);
+
+        if (blockSize > 0) {
+            recommender = new HIRBatchRecommender(dao, model, 0.4, 0.3, blockSize);
+        } else {
+            scorer = new HIRItemScorer(dao, model, BenchmarkData.genres(index), null, 0.4, 0.3);
+        }
+        users = new LongArrayList();
+        for (long u = 0; u < USER_COUNT; u++) {
+            users.add(u);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.delete();
+        if (modelFile != null) {
+            modelFile.delete();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USER_COUNT)
+    public Object recommend() {
+        if (recommender != null) {
+            return recommender.recommend(users, 10);
+        }
+        List<List<Result>> results = new ArrayList<>(USER_COUNT);
+        for (long user : users) {
+            results.add(scorer.recommend(user, 10, null, null));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to build a {@link HIRModel} as the catalog grows, with exact
+ * coratings ({@code sketchSize} 0) and with coratings estimated from MinHash sketches.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HIRModelBuildBenchmark {
+
+    @Param({"1000", "5000", "20000"})
+    public int itemCount;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"0", "64"})
+    public int sketchSize;
+
+    private ItemIndex index;
+
+    private MapItemGenreDAO genres;
+
+    private List<IntList> users;
+
+    @Setup
+    public void setup() {
+        index = BenchmarkData.items(itemCount);
+        genres = BenchmarkData.genres(index);
+        users = BenchmarkData.userItems(5000, itemCount, 40);
+    }
+
+    @Benchmark
+    public HIRModel build() {
+        return HIRModelBuilder.build(index, genres, users, threads, sketchSize, 1);
+    }
+}
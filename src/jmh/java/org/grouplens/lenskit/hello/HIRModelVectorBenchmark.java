@@ -0,0 +1,89 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the per-item vector lookups of {@link HIRModel}.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HIRModelVectorBenchmark {
+
+    private static final int ITEM_COUNT = 5000;
+
+    @Param({"100", "5000"})
+    public int candidateCount;
+
+    private HIRModel model;
+
+    private LongArrayList candidates;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        ItemIndex index = BenchmarkData.items(ITEM_COUNT);
+        model = HIRModelBuilder.build(index, BenchmarkData.genres(index),
+                                      BenchmarkData.userItems(2000, ITEM_COUNT, 40), 1);
+        candidates = new LongArrayList();
+        for (int i : BenchmarkData.draw(new Random(5), ITEM_COUNT, candidateCount)) {
+            candidates.add(index.getId(i));
+        }
+    }
+
+    private long nextItem() {
+        next = (next + 1) % ITEM_COUNT;
+        return model.getItemIndex().getId(next);
+    }
+
+    @Benchmark
+    public MutableSparseVector coratings() {
+        return model.getCoratingsVector(nextItem(), candidates);
+    }
+
+    @Benchmark
+    public MutableSparseVector proximity() {
+        return model.getProximityVector(nextItem(), candidates);
+    }
+}
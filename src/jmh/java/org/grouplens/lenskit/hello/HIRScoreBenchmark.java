@@ -0,0 +1,102 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lenskit.api.ResultMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of scoring every item for one user as the user's history grows,
+ * for each precision of the direct-association matrix.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HIRScoreBenchmark {
+
+    private static final int ITEM_COUNT = 5000;
+
+    @Param({"10", "100", "1000"})
+    public int historyLength;
+
+    @Param({"DOUBLE", "FLOAT", "SHORT", "BYTE"})
+    public ValuePrecision precision;
+
+    private HIRItemScorer scorer;
+
+    private LongArrayList candidates;
+
+    private long user;
+
+    private File cache;
+
+    @Setup
+    public void setup() throws IOException {
+        ItemIndex index = BenchmarkData.items(ITEM_COUNT);
+        MapItemGenreDAO genres = BenchmarkData.genres(index);
+        List<IntList> users = BenchmarkData.userItems(2000, ITEM_COUNT, 40);
+        HIRModel model = HIRModelBuilder.build(index, genres, users, 1).withPrecision(precision);
+
+        // the measured user is the last one, with exactly the requested history
+        user = users.size();
+        users.add(BenchmarkData.draw(new Random(3), ITEM_COUNT, historyLength));
+        cache = File.createTempFile("ratings", ".bin");
+        RatingColumnsFile.write(BenchmarkData.ratings(users, index).sortedByUser(), 0, 0, cache);
+        ColumnarRatingDAO dao = RatingColumnsFile.load(cache, null);
+
+        scorer = new HIRItemScorer(dao, model, genres, null, 0.4, 0.3);
+        candidates = BenchmarkData.ids(index);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.delete();
+    }
+
+    @Benchmark
+    public ResultMap score() {
+        return scorer.scoreWithDetails(user, candidates);
+    }
+}
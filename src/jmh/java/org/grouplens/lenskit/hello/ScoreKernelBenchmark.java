@@ -0,0 +1,135 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link ScoreKernels} paths of scoring with the loops they replaced:
+ * adding weighted corating rows through the array kernels or through the buffers,
+ * and the proximity of every item to a genre profile with or without the kernels.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScoreKernelBenchmark {
+
+    private static final int ITEM_COUNT = 5000;
+
+    private static final int ROW_COUNT = 100;
+
+    @Param({"DOUBLE", "FLOAT", "SHORT", "BYTE"})
+    public ValuePrecision precision;
+
+    private HIRModel model;
+
+    private SparseRowMatrix cmatrix;
+
+    private int[] rows;
+
+    private double[] profile;
+
+    private double[] scores;
+
+    @Setup
+    public void setup() {
+        ItemIndex index = BenchmarkData.items(ITEM_COUNT);
+        model = HIRModelBuilder.build(index, BenchmarkData.genres(index),
+                                      BenchmarkData.userItems(2000, ITEM_COUNT, 40), 1)
+                                .withPrecision(precision);
+        cmatrix = model.getCoratingMatrix();
+        rows = BenchmarkData.draw(new Random(7), ITEM_COUNT, ROW_COUNT).toIntArray();
+        profile = new double[model.getGenreCount()];
+        for (int row : rows) {
+            model.addGenreProfile(row, 1.0 / ROW_COUNT, profile);
+        }
+        scores = new double[ITEM_COUNT];
+    }
+
+    @Benchmark
+    public double[] addRows() {
+        for (int row : rows) {
+            cmatrix.addRow(row, 0.5, scores);
+        }
+        return scores;
+    }
+
+    @Benchmark
+    public double[] addRowsBuffered() {
+        for (int row : rows) {
+            cmatrix.addRowBuffered(row, 0.5, scores);
+        }
+        return scores;
+    }
+
+    @Benchmark
+    public double[] proximity() {
+        model.addProximity(profile, 0.3, scores);
+        return scores;
+    }
+
+    /**
+     * The proximity of every item as computed before the kernels: each signature
+     * weights the profile itself, and each item multiplies its signature's proximity.
+     */
+    @Benchmark
+    public double[] proximityBaseline() {
+        ItemGenreBits genres = model.getGenreBits();
+        double[] weights = model.getGenreWeights();
+        final int signatureSize = genres.getSignatureCount();
+        final int words = genres.getWordCount();
+        double[] proximities = ScoringBuffers.signatures(signatureSize);
+        for (int s = 0; s < signatureSize; s++) {
+            double sum = 0;
+            for (int w = 0; w < words; w++) {
+                long word = genres.signatureWord(s, w);
+                while (word != 0) {
+                    final int g = (w << 6) + Long.numberOfTrailingZeros(word);
+                    sum += profile[g] * weights[g];
+                    word &= word - 1;
+                }
+            }
+            proximities[s] = sum;
+        }
+        for (int j = 0; j < ITEM_COUNT; j++) {
+            scores[j] += 0.3 * proximities[genres.signatureOf(j)];
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongCollection;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.lenskit.api.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the top-N recommendations of many users to a CSV file. Worker threads
+ * take blocks of users from a shared cursor, so a few users with long histories do
+ * not hold up the others, and recommend for each block with a
+ * {@link HIRBatchRecommender}. Their output
+ * is handed in chunks to a single writer thread through a bounded queue, so memory
+ * stays flat however many users there are: workers wait when the writer falls behind.
+ * <p>
+ * Each output line is {@code user,rank,item,score}, with ranks starting at 1. Users
+ * appear in the order they finish, not in the order given.
+ */
+
+public class BatchRecommendationWriter {
+    private static final Logger logger = LoggerFactory.getLogger(BatchRecommendationWriter.class);
+
+    /**
+     * The size at which a worker hands its buffered lines to the writer.
+     */
+    private static final int CHUNK_CHARS = 64 * 1024;
+
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * The chunk with which each worker signals that it is finished.
+     */
+    private static final String END = "";
+
+    private final HIRBatchRecommender recommender;
+    private final int threads;
+
+    /**
+     * @param scorer  The scorer whose model, histories and weights to recommend with.
+     * @param threads The number of worker threads.
+     */
+    public BatchRecommendationWriter(HIRItemScorer scorer, int threads) {
+        this(scorer.batchRecommender(), threads);
+    }
+
+    /**
+     * @param recommender The recommender to score blocks of users with.
+     * @param threads     The number of worker threads.
+     */
+    public BatchRecommendationWriter(HIRBatchRecommender recommender, int threads) {
+        Preconditions.checkArgument(threads > 0, "thread count must be positive");
+        this.recommender = recommender;
+        this.threads = threads;
+    }
+
+    /**
+     * Recommends for every user and writes the results.
+     *
+     * @param users  The users to recommend for.
+     * @param n      The number of recommendations per user.
+     * @param output The CSV file to write.
+     * @return The number of users written.
+     * @throws IOException if there is an error writing the file.
+     */
+    public long write(LongCollection users, final int n, File output) throws IOException {
+        final long[] ids = users.toLongArray();
+        final AtomicInteger cursor = new AtomicInteger();
+        final AtomicLong done = new AtomicLong();
+        final AtomicBoolean writerFailed = new AtomicBoolean();
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<>(threads * 4);
+        final long start = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+        try (final Writer writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("user,rank,item,score\n");
+            Future<Void> writing = pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int running = threads;
+                    long lastReport = start;
+                    try {
+                        while (running > 0) {
+                            String chunk = queue.take();
+                            if (chunk.isEmpty()) {
+                                running--;
+                                continue;
+                            }
+                            writer.write(chunk);
+                            long now = System.nanoTime();
+                            if (now - lastReport >= REPORT_INTERVAL) {
+                                logger.info("recommended for {} of {} users ({} users/sec)",
+                                            done.get(), ids.length, usersPerSecond(done.get(), now - start));
+                                lastReport = now;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        writerFailed.set(true);
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+
+            List<Future<Void>> workers = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                workers.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        StringBuilder lines = new StringBuilder(CHUNK_CHARS + 1024);
+                        final int blockSize = recommender.getBlockSize();
+                        LongList block = new LongArrayList(blockSize);
+                        try {
+                            int first;
+                            while ((first = cursor.getAndAdd(blockSize)) < ids.length) {
+                                block.clear();
+                                for (int i = first; i < Math.min(first + blockSize, ids.length); i++) {
+                                    block.add(ids[i]);
+                                }
+                                Long2ObjectMap<List<Result>> results = recommender.recommend(block, n);
+                                for (Long2ObjectMap.Entry<List<Result>> entry : results.long2ObjectEntrySet()) {
+                                    final long user = entry.getLongKey();
+                                    List<Result> recs = entry.getValue();
+                                    for (int r = 0; r < recs.size(); r++) {
+                                        Result rec = recs.get(r);
+                                        lines.append(user).append(',').append(r + 1).append(',')
+                                             .append(rec.getId()).append(',').append(rec.getScore()).append('\n');
+                                    }
+                                }
+                                done.addAndGet(block.size());
+                                if (lines.length() >= CHUNK_CHARS) {
+                                    queue.put(lines.toString());
+                                    lines.setLength(0);
+                                }
+                            }
+                            if (lines.length() > 0) {
+                                queue.put(lines.toString());
+                            }
+                        } finally {
+                            // skip the remaining users so the other workers stop too
+                            cursor.set(ids.length);
+                            // nobody is left to drain a full queue once the writer has failed
+                            if (!writerFailed.get()) {
+                                queue.put(END);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            // if the writer fails, the workers blocked on the queue are interrupted below
+            await(writing);
+            for (Future<Void> worker : workers) {
+                await(worker);
+            }
+        } finally {
+            shutdown(pool);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        logger.info("wrote recommendations for {} users to {} in {}ms ({} users/sec)",
+                    done.get(), output, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                    usersPerSecond(done.get(), elapsed));
+        return done.get();
+    }
+
+    static long usersPerSecond(long users, long nanos) {
+        return nanos > 0 ? Math.round(users * 1.0e9 / nanos) : 0;
+    }
+
+    /**
+     * Interrupts the writer and workers and waits for them to stop, so no thread
+     * outlives a failed write.
+     */
+    private static void shutdown(ExecutorService pool) {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(Future<Void> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing recommendations", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("error writing recommendations", cause);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.collections.LongUtils;
+import org.lenskit.data.dao.EventDAO;
+import org.lenskit.data.dao.SortOrder;
+import org.lenskit.data.dao.UserDAO;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.history.History;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+
+import javax.annotation.Nullable;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An event DAO over ratings stored in columns sorted by user, usually mapped from
+ * a {@link RatingColumnsFile}. The ratings of the user at position {@code u} of the
+ * sorted user IDs occupy rows {@code offsets[u]} to {@code offsets[u + 1] - 1} of
+ * the item, value and timestamp columns. Rating events are created as they are
+ * read, so the DAO itself holds only the columns.
+ */
+
+public class ColumnarRatingDAO implements EventDAO, UserEventDAO, UserDAO {
+
+    private final long[] userIds;
+    private final IntBuffer offsets;
+    private final LongBuffer items;
+    private final DoubleBuffer values;
+    private final LongBuffer timestamps;
+    private final LongSet userIdSet;
+
+    /**
+     * Creates a DAO over columns sorted by user. The buffers are not copied.
+     *
+     * @param userIds    The user IDs, in ascending order.
+     * @param offsets    The first row of each user, followed by the number of rows.
+     * @param items      The item of each rating.
+     * @param values     The value of each rating.
+     * @param timestamps The timestamp of each rating.
+     */
+    ColumnarRatingDAO(long[] userIds, IntBuffer offsets, LongBuffer items,
+                      DoubleBuffer values, LongBuffer timestamps) {
+        this.userIds = userIds;
+        this.offsets = offsets;
+        this.items = items;
+        this.values = values;
+        this.timestamps = timestamps;
+        userIdSet = LongUtils.packedSet(userIds);
+    }
+
+    /**
+     * @return The number of ratings.
+     */
+    public int getRatingCount() {
+        return offsets.get(userIds.length);
+    }
+
+    @Override
+    public LongSet getUserIds() {
+        return userIdSet;
+    }
+
+    @Override
+    public ObjectStream<Event> streamEvents() {
+        return ObjectStreams.<Event>wrap(new RatingIterator());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E extends Event> ObjectStream<E> streamEvents(Class<E> type) {
+        if (!type.isAssignableFrom(Rating.class)) {
+            return ObjectStreams.wrap(Collections.<E>emptyList());
+        }
+        return (ObjectStream<E>) ObjectStreams.wrap(new RatingIterator());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E extends Event> ObjectStream<E> streamEvents(Class<E> type, SortOrder order) {
+        if (!type.isAssignableFrom(Rating.class)) {
+            return ObjectStreams.wrap(Collections.<E>emptyList());
+        }
+        Comparator<Rating> comparator;
+        switch (order) {
+        case TIMESTAMP:
+            comparator = new Comparator<Rating>() {
+                @Override
+                public int compare(Rating a, Rating b) {
+                    return Long.compare(a.getTimestamp(), b.getTimestamp());
+                }
+            };
+            break;
+        case ITEM:
+            comparator = new Comparator<Rating>() {
+                @Override
+                public int compare(Rating a, Rating b) {
+                    return Long.compare(a.getItemId(), b.getItemId());
+                }
+            };
+            break;
+        default:
+            // the columns are already in user order
+            return streamEvents(type);
+        }
+        List<Rating> ratings = new ArrayList<>(getRatingCount());
+        Iterator<Rating> iter = new RatingIterator();
+        while (iter.hasNext()) {
+            ratings.add(iter.next());
+        }
+        Collections.sort(ratings, comparator);
+        return (ObjectStream<E>) ObjectStreams.wrap(ratings);
+    }
+
+    @Override
+    public ObjectStream<UserHistory<Event>> streamEventsByUser() {
+        return streamEventsByUser(Event.class);
+    }
+
+    @Override
+    public <E extends Event> ObjectStream<UserHistory<E>> streamEventsByUser(final Class<E> type) {
+        return ObjectStreams.wrap(new Iterator<UserHistory<E>>() {
+            private int user = 0;
+
+            @Override
+            public boolean hasNext() {
+                return user < userIds.length;
+            }
+
+            @Override
+            public UserHistory<E> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return history(user++, type);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    @Nullable
+    @Override
+    public UserHistory<Event> getEventsForUser(long user) {
+        return getEventsForUser(user, Event.class);
+    }
+
+    @Nullable
+    @Override
+    public <E extends Event> UserHistory<E> getEventsForUser(long user, Class<E> type) {
+        final int u = Arrays.binarySearch(userIds, user);
+        if (u < 0) {
+            return null;
+        }
+        return history(u, type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <E extends Event> UserHistory<E> history(int u, Class<E> type) {
+        final long user = userIds[u];
+        if (!type.isAssignableFrom(Rating.class)) {
+            return History.forUser(user);
+        }
+        final int start = offsets.get(u);
+        final int size = offsets.get(u + 1) - start;
+        List<Rating> ratings = new AbstractList<Rating>() {
+            @Override
+            public Rating get(int i) {
+                if (i < 0 || i >= size) {
+                    throw new IndexOutOfBoundsException();
+                }
+                return rating(user, start + i);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+        return History.forUser(user, (List<E>) ratings);
+    }
+
+    private Rating rating(long user, int row) {
+        return Rating.create(user, items.get(row), values.get(row), timestamps.get(row));
+    }
+
+    /**
+     * Iterates over all ratings in user order.
+     */
+    private class RatingIterator implements Iterator<Rating> {
+        private int user = 0;
+        private int row = 0;
+        private final int end = getRatingCount();
+
+        @Override
+        public boolean hasNext() {
+            return row < end;
+        }
+
+        @Override
+        public Rating next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            while (offsets.get(user + 1) <= row) {
+                user++;
+            }
+            return rating(userIds[user], row++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Corating Memory Budget Parameter.
+ * With a positive value, the {@code HIRModelBuilder} counts coratings out of core
+ * with {@link ExternalCoratingMatrix}, buffering at most this many mebibytes of
+ * corating pairs and merge buffers and spilling the rest to the
+ * {@link SpillDirectory}. The default of 0 counts coratings in the heap.
+ * It cannot be combined with a positive {@link CoratingSketchSize}.
+ * <p>
+ * The budget only bounds the corating counts. The build still holds the rated
+ * items of every user in the heap, as the build context holds the ratings of
+ * every item, so its heap use beyond the budget grows with the number of ratings
+ * (a few dozen bytes each), not with the number of corating pairs.
+ */
+
+@Documented
+@DefaultInteger(0)
+@Parameter(Integer.class)
+@Qualifier
+@Target({ElementType.METHOD, ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CoratingMemoryBudget {
+}
@@ -21,22 +21,26 @@
 
 package org.grouplens.lenskit.hello;
 
-import it.unimi.dsi.fastutil.longs.LongSet;
-import org.apache.commons.lang3.tuple.Pair;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
-import org.grouplens.lenskit.vectors.*;
-import org.lenskit.data.dao.ItemDAO;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntList;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * A matrix to store the direct inter-item relationships
  * that derive from the number of their coratings.
+ * Coratings are accumulated in per-row hash maps and compressed into
+ * a {@link SparseRowMatrix}, so memory tracks the number of item pairs
+ * that actually co-occur.
  */
 
 public class DirectAssociationMatrix {
 
-    private RealMatrix workMatrix;
+    private final Int2IntOpenHashMap[] workRows;
+
+    private final double[] rowTotals;
 
     private int itemSize;
 
@@ -44,51 +48,151 @@ public class DirectAssociationMatrix {
      * Creates a matrix to process rating data and generate coratings for
      * a {@code HIRItemScorer}.
      *
-     * @param dao       The DataAccessObject interfacing with the data for the model
+     * @param index     The index of the items covered by the model
      */
 
-    public DirectAssociationMatrix(ItemDAO dao) {
-        LongSet items = dao.getItemIds();
-        itemSize = items.size();
-        workMatrix = MatrixUtils.createRealMatrix(itemSize, itemSize);
+    public DirectAssociationMatrix(ItemIndex index) {
+        itemSize = index.size();
+        workRows = new Int2IntOpenHashMap[itemSize];
+        rowTotals = new double[itemSize];
+    }
+
+    /**
+     * Puts the items rated by a single user into the accumulator.
+     * Every pair of distinct items in the list gains one corating,
+     * so only pairs that actually co-occur in a user history are touched.
+     *
+     * @param items The indexes of the items rated by the user.
+     */
+    public void putUserItems(IntList items) {
+        final int n = items.size();
+        for (int a = 0; a < n; a++) {
+            final int id1 = items.getInt(a);
+            for (int b = a + 1; b < n; b++) {
+                final int id2 = items.getInt(b);
+                workRow(id1).addTo(id2, 1);
+                workRow(id2).addTo(id1, 1);
+            }
+        }
     }
 
     /**
-     * Puts the item pair into the accumulator.
+     * Puts the items rated by a single user into the accumulator,
+     * restricted to the rows in {@code [start, end)}. Callers that
+     * cover disjoint row ranges may run concurrently.
      *
-     * @param id1      The id of the first item.
-     * @param itemVec1 The rating vector of the first item.
-     * @param id2      The id of the second item.
-     * @param itemVec2 The rating vector of the second item.
+     * @param items The indexes of the items rated by the user, in ascending order.
+     * @param start The first row to update.
+     * @param end   The row after the last row to update.
      */
-    public void putItemPair(long id1, SparseVector itemVec1, long id2, SparseVector itemVec2) {
-
-        if (id1 == id2) {
-            workMatrix.setEntry((int) id1, (int)id2, 0);
-        } else {
-            long coratings = 0;
-            for (Pair<VectorEntry,VectorEntry> pair: Vectors.fastIntersect(itemVec1, itemVec2)) {
-                coratings++;
+    public void putUserItems(IntList items, int start, int end) {
+        final int n = items.size();
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (items.getInt(mid) < start) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int a = lo; a < n; a++) {
+            final int id1 = items.getInt(a);
+            if (id1 >= end) {
+                break;
+            }
+            Int2IntOpenHashMap counts = workRow(id1);
+            for (int b = 0; b < n; b++) {
+                if (b != a) {
+                    counts.addTo(items.getInt(b), 1);
+                }
             }
-            workMatrix.setEntry((int) id1, (int) id2, coratings);
         }
     }
 
+    private Int2IntOpenHashMap workRow(int row) {
+        Int2IntOpenHashMap counts = workRows[row];
+        if (counts == null) {
+            counts = new Int2IntOpenHashMap();
+            workRows[row] = counts;
+        }
+        return counts;
+    }
+
     /**
      * @return A matrix of item corating values to be used by
      *         a {@code HIRItemScorer}.
      */
-    public RealMatrix buildMatrix() {
-
-        for (int i=0; i<itemSize; i++) {
-            RealVector testRow = workMatrix.getRowVector(i);
-            double testSum = testRow.getL1Norm();
-            if (testSum != 0){
-                testRow.mapDivideToSelf(testSum);
-                workMatrix.setRowVector(i, testRow);
+    public SparseRowMatrix buildMatrix() {
+        return buildMatrix(null);
+    }
+
+    /**
+     * Compresses and normalizes the accumulated coratings, splitting the
+     * rows across a fork-join pool. The result does not depend on the pool.
+     *
+     * @param pool The pool to build on, or {@code null} to build on the calling thread.
+     * @return A matrix of item corating values to be used by
+     *         a {@code HIRItemScorer}.
+     */
+    public SparseRowMatrix buildMatrix(@Nullable ForkJoinPool pool) {
+
+        final int[] rowOffsets = new int[itemSize + 1];
+        for (int i = 0; i < itemSize; i++) {
+            int rowSize = workRows[i] == null ? 0 : workRows[i].size();
+            rowOffsets[i + 1] = rowOffsets[i] + rowSize;
+        }
+
+        final int[] columns = new int[rowOffsets[itemSize]];
+        final double[] values = new double[rowOffsets[itemSize]];
+
+        ParallelRows.forEach(pool, itemSize, new ParallelRows.Body() {
+            @Override
+            public void run(int startRow, int endRow) {
+                for (int i = startRow; i < endRow; i++) {
+                    compressRow(i, rowOffsets[i], rowOffsets[i + 1], columns, values);
+                }
             }
+        });
+
+        return new SparseRowMatrix(itemSize, rowOffsets, columns, values);
+    }
 
+    /**
+     * Moves one accumulated row into the compressed arrays and divides it by its L1 norm.
+     */
+    private void compressRow(int row, int start, int end, int[] columns, double[] values) {
+        Int2IntOpenHashMap counts = workRows[row];
+        if (counts == null) {
+            return;
         }
-        return workMatrix;
+        int pos = start;
+        for (int column : counts.keySet()) {
+            columns[pos++] = column;
+        }
+        IntArrays.quickSort(columns, start, end);
+
+        double testSum = 0;
+        for (pos = start; pos < end; pos++) {
+            values[pos] = counts.get(columns[pos]);
+            testSum += values[pos];
+        }
+        if (testSum != 0) {
+            for (pos = start; pos < end; pos++) {
+                values[pos] /= testSum;
+            }
+        }
+        rowTotals[row] = testSum;
+        workRows[row] = null;
+    }
+
+    /**
+     * @return The number of coratings in each row before normalization.
+     *         Only meaningful after {@link #buildMatrix()}; a row's counts
+     *         are its normalized values multiplied by its total.
+     */
+    public double[] getRowTotals() {
+        return rowTotals;
     }
 }
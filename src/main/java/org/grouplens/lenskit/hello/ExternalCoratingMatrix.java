@@ -0,0 +1,349 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts coratings in bounded memory, for catalogs whose corating counts do not
+ * fit in the heap. Each pair of items rated by a user is packed into a buffer;
+ * when the buffer fills, it is sorted, equal pairs are summed, and the counts
+ * are spilled to a run file. The runs are then merged, in several passes if
+ * there are too many to read at once, and each normalized entry is written
+ * straight into a {@link HIRModelFile}, which is mapped to serve the model. The
+ * matrix is limited to what a model file can map: 2 GB of columns and of values.
+ * <p>
+ * The pair buffer and the merge buffers share the memory budget; beyond it, the
+ * build keeps a few numbers per item. The result equals the matrix built by
+ * {@link DirectAssociationMatrix}.
+ */
+
+public class ExternalCoratingMatrix implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ExternalCoratingMatrix.class);
+
+    /**
+     * The buffer size of each run read or written during a merge.
+     */
+    private static final int RUN_BUFFER = 64 * 1024;
+
+    private final int itemSize;
+    private final File directory;
+    private final long[] pairs;
+    private final int fanIn;
+    private int pairCount;
+
+    private final List<File> runs = new ArrayList<>();
+
+    private final double[] rowTotals;
+
+    /**
+     * Creates a matrix to count coratings for a {@code HIRItemScorer}.
+     *
+     * @param index        The index of the items covered by the model.
+     * @param memoryBudget The number of bytes the pair and merge buffers may use.
+     * @param directory    The directory for run files.
+     */
+    public ExternalCoratingMatrix(ItemIndex index, long memoryBudget, File directory) {
+        Preconditions.checkArgument(memoryBudget >= 4 * RUN_BUFFER, "memory budget is too small");
+        itemSize = index.size();
+        this.directory = directory;
+        pairs = new long[(int) Math.min(Integer.MAX_VALUE - 8, memoryBudget / 2 / 8)];
+        fanIn = (int) Math.max(2, Math.min(1024, memoryBudget / 2 / RUN_BUFFER));
+        rowTotals = new double[itemSize];
+    }
+
+    /**
+     * Puts the items rated by a single user into the accumulator, spilling the
+     * pair buffer to disk whenever it fills.
+     *
+     * @param items The indexes of the items rated by the user.
+     * @throws IOException if a run cannot be written.
+     */
+    public void putUserItems(IntList items) throws IOException {
+        final int n = items.size();
+        for (int a = 0; a < n; a++) {
+            final long id1 = items.getInt(a);
+            for (int b = a + 1; b < n; b++) {
+                final long id2 = items.getInt(b);
+                if (pairCount + 2 > pairs.length) {
+                    spill();
+                }
+                pairs[pairCount++] = (id1 << 32) | id2;
+                pairs[pairCount++] = (id2 << 32) | id1;
+            }
+        }
+    }
+
+    /**
+     * Sorts the buffered pairs and writes their counts to a new run.
+     */
+    private void spill() throws IOException {
+        if (pairCount == 0) {
+            return;
+        }
+        Arrays.sort(pairs, 0, pairCount);
+        File run = createFile("run");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER))) {
+            int pos = 0;
+            while (pos < pairCount) {
+                final long key = pairs[pos];
+                int count = 0;
+                while (pos < pairCount && pairs[pos] == key) {
+                    count++;
+                    pos++;
+                }
+                out.writeLong(key);
+                out.writeInt(count);
+            }
+        }
+        runs.add(run);
+        logger.debug("spilled {} corating pairs to {}", pairCount, run);
+        pairCount = 0;
+    }
+
+    /**
+     * Merges the spilled counts into a row-normalized matrix and writes it, with
+     * the rest of a model, to a model file that {@link HIRModelFile#load(File)}
+     * maps. The runs are merged twice: once to find the size, total and largest
+     * count of each row, and once to write each normalized entry straight to its
+     * place in the file.
+     *
+     * @param index        The index of the model's items.
+     * @param genres       The genre sets of the items.
+     * @param genreWeights The weight of each genre.
+     * @param precision    The precision in which to store the values.
+     * @param file         The model file to write.
+     * @throws IOException if the runs cannot be merged, the matrix is too large to
+     *                     map, or the file cannot be written.
+     */
+    public void writeModel(ItemIndex index, ItemGenreBits genres, double[] genreWeights,
+                           ValuePrecision precision, File file) throws IOException {
+        Preconditions.checkArgument(index.size() == itemSize, "index has %s items, expected %s",
+                                    index.size(), itemSize);
+        spill();
+        int passes = 0;
+        while (runs.size() > fanIn) {
+            List<File> group = new ArrayList<>(runs.subList(0, fanIn));
+            runs.subList(0, fanIn).clear();
+            File merged = createFile("run");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(merged), RUN_BUFFER))) {
+                RunMerger merger = new RunMerger(group);
+                try {
+                    while (merger.next()) {
+                        out.writeLong(merger.key);
+                        out.writeInt(merger.count);
+                    }
+                } finally {
+                    merger.close();
+                }
+            }
+            for (File run : group) {
+                delete(run);
+            }
+            runs.add(merged);
+            passes++;
+        }
+        logger.info("merging {} corating runs after {} intermediate merges", runs.size(), passes);
+
+        final long[] rowSizes = new long[itemSize];
+        final int[] maxCounts = new int[itemSize];
+        RunMerger merger = new RunMerger(runs);
+        try {
+            while (merger.next()) {
+                final int row = (int) (merger.key >>> 32);
+                rowSizes[row]++;
+                rowTotals[row] += merger.count;
+                maxCounts[row] = Math.max(maxCounts[row], merger.count);
+            }
+        } finally {
+            merger.close();
+        }
+        final int[] rowOffsets = new int[itemSize + 1];
+        long entries = 0;
+        for (int i = 0; i < itemSize; i++) {
+            entries += rowSizes[i];
+            if (entries > Integer.MAX_VALUE - 8) {
+                throw new IOException(String.format("%s: too many coratings to store (more than %d)",
+                                                    file, entries));
+            }
+            rowOffsets[i + 1] = (int) entries;
+        }
+
+        // The values are those of DirectAssociationMatrix, and the scales those of
+        // SparseRowMatrix#withPrecision(ValuePrecision): each row's largest value
+        // is its largest count over its total
+        final double[] rowScales = new double[itemSize];
+        for (int i = 0; i < itemSize; i++) {
+            double max = rowTotals[i] != 0 ? maxCounts[i] / rowTotals[i] : maxCounts[i];
+            rowScales[i] = precision.isQuantized() ? max / precision.getMaxLevel() : 1;
+        }
+        try (HIRModelFile.MatrixWriter writer = new HIRModelFile.MatrixWriter(file, rowOffsets, precision)) {
+            merger = new RunMerger(runs);
+            try {
+                while (merger.next()) {
+                    final int row = (int) (merger.key >>> 32);
+                    final double total = rowTotals[row];
+                    writer.put((int) merger.key, total != 0 ? merger.count / total : merger.count,
+                               rowScales[row]);
+                }
+            } finally {
+                merger.close();
+            }
+            writer.finish(index, precision.isQuantized() ? rowScales : null, rowTotals, genres, genreWeights);
+        }
+        for (File run : runs) {
+            delete(run);
+        }
+        runs.clear();
+    }
+
+    /**
+     * @return The number of coratings in each row before normalization.
+     *         Only meaningful after {@link #writeModel}.
+     */
+    public double[] getRowTotals() {
+        return rowTotals;
+    }
+
+    /**
+     * Deletes the runs left by the build.
+     */
+    @Override
+    public void close() {
+        for (File run : runs) {
+            delete(run);
+        }
+        runs.clear();
+    }
+
+    private File createFile(String kind) throws IOException {
+        File file = File.createTempFile("hir-" + kind, ".tmp", directory);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            logger.warn("could not delete {}", file);
+        }
+    }
+
+    /**
+     * Merges sorted runs, summing the counts of equal pairs.
+     */
+    private static class RunMerger {
+        private final List<RunReader> readers = new ArrayList<>();
+        private final PriorityQueue<RunReader> queue;
+        long key;
+        int count;
+
+        RunMerger(List<File> runs) throws IOException {
+            queue = new PriorityQueue<>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+                @Override
+                public int compare(RunReader a, RunReader b) {
+                    return Long.compare(a.key, b.key);
+                }
+            });
+            try {
+                for (File run : runs) {
+                    RunReader reader = new RunReader(run);
+                    readers.add(reader);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Moves to the next distinct pair.
+         *
+         * @return {@code false} if all runs are exhausted.
+         */
+        boolean next() throws IOException {
+            RunReader head = queue.poll();
+            if (head == null) {
+                return false;
+            }
+            key = head.key;
+            count = 0;
+            while (head != null && head.key == key) {
+                count += head.count;
+                if (head.advance()) {
+                    queue.add(head);
+                }
+                head = queue.peek() != null && queue.peek().key == key ? queue.poll() : null;
+            }
+            return true;
+        }
+
+        void close() throws IOException {
+            for (RunReader reader : readers) {
+                reader.in.close();
+            }
+        }
+    }
+
+    private static class RunReader {
+        final DataInputStream in;
+        long key;
+        int count;
+
+        RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                key = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            count = in.readInt();
+            return true;
+        }
+    }
+}
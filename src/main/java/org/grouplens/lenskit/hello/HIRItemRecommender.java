@@ -0,0 +1,110 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultList;
+import org.lenskit.basic.TopNItemRecommender;
+import org.lenskit.data.dao.ItemDAO;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.results.Results;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A top-N recommender for the HIR algorithm that serves repeated requests
+ * from a {@link RecommendationCache}. Only unrestricted requests (no candidate
+ * or exclude set) are cached; everything else goes straight to the scorer.
+ * With an {@link HIRItemScorer}, recommendations come from its bounded top-N
+ * search rather than from scoring and sorting the whole catalog.
+ * Cached lists are keyed by the model in the {@link HIRModelHolder} when the
+ * request started, and by the user's history in the histories installed with it,
+ * so they stop being served once a rebuilt model is installed.
+ */
+
+public class HIRItemRecommender extends TopNItemRecommender {
+
+    private final UserEventDAO userEventDAO;
+    private final HIRModelHolder models;
+    private final RecommendationCache cache;
+
+    @Inject
+    public HIRItemRecommender(UserEventDAO dao,
+                              ItemDAO idao,
+                              ItemScorer scorer,
+                              HIRModelHolder models,
+                              RecommendationCache cache) {
+        super(dao, idao, scorer);
+        userEventDAO = dao;
+        this.models = models;
+        this.cache = cache;
+    }
+
+    @Override
+    public List<Long> recommend(long user, int n, @Nullable Set<Long> candidates, @Nullable Set<Long> exclude) {
+        List<Long> ids = new ArrayList<>();
+        for (Result r : recommendWithDetails(user, n, candidates, exclude)) {
+            ids.add(r.getId());
+        }
+        return ids;
+    }
+
+    @Override
+    public ResultList recommendWithDetails(long user, int n, @Nullable Set<Long> candidates, @Nullable Set<Long> exclude) {
+        if (n < 0) {
+            return super.recommendWithDetails(user, n, candidates, exclude);
+        }
+        if (candidates != null || exclude != null) {
+            return compute(user, n, candidates, exclude);
+        }
+
+        HIRModelHolder.Snapshot snapshot = models.current();
+        HIRModel model = snapshot.getModel();
+        UserHistory<Event> history = snapshot.getDAO(userEventDAO).getEventsForUser(user);
+        long version = RecommendationCache.historyVersion(
+                history == null ? Collections.<Event>emptyList() : history);
+
+        List<Result> cached = cache.get(user, n, model, version);
+        if (cached != null) {
+            return Results.newResultList(cached);
+        }
+
+        ResultList results = compute(user, n, null, null);
+        cache.put(user, n, model, version, new ArrayList<>(results));
+        return results;
+    }
+
+    private ResultList compute(long user, int n, @Nullable Set<Long> candidates, @Nullable Set<Long> exclude) {
+        if (scorer instanceof HIRItemScorer) {
+            return Results.newResultList(((HIRItemScorer) scorer).recommend(user, n, candidates, exclude));
+        }
+        return super.recommendWithDetails(user, n, candidates, exclude);
+    }
+}
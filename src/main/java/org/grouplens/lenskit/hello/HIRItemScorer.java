@@ -25,10 +25,13 @@ package org.grouplens.lenskit.hello;
  * An {@link org.lenskit.api.ItemScorer} that implements the HIR algorithm.
  */
 
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongIterators;
 import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
 import org.grouplens.lenskit.transform.normalize.DefaultUserVectorNormalizer;
 import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
-import org.grouplens.lenskit.vectors.MutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.grouplens.lenskit.vectors.VectorEntry;
 import org.lenskit.api.Result;
@@ -49,93 +52,261 @@ import java.util.*;
 
 /**
  * An {@link ItemScorer} that implements the HIR algorithm.
+ * The model and the user histories are read from a {@link HIRModelHolder} once
+ * per request, so a model rebuilt in the background takes effect, together with
+ * the histories it was built from, for the next request.
  */
 
 public class HIRItemScorer extends AbstractItemScorer {
 
     protected final UserEventDAO dao;
     protected final ItemDAO idao;
-    protected HIRModel model;
+    protected final HIRModelHolder models;
     protected final PreferenceDomain domain;
     protected double directAssociation;
     protected double proximity;
 
     @Inject
     public HIRItemScorer(UserEventDAO dao,
-                         HIRModel model,
+                         HIRModelHolder models,
                          ItemDAO idao,
                          @Nullable PreferenceDomain dom,
                          @DirectAssociationParameter double direct,
                          @ProximityParameter double prox) {
         this.dao = dao;
-        this.model = model;
+        this.models = models;
         this.idao = idao;
         domain = dom;
         directAssociation = direct;
         proximity = prox;
     }
 
+    /**
+     * Creates a scorer for a fixed model.
+     */
+    public HIRItemScorer(UserEventDAO dao,
+                         HIRModel model,
+                         ItemDAO idao,
+                         @Nullable PreferenceDomain dom,
+                         double direct,
+                         double prox) {
+        this(dao, new HIRModelHolder(model), idao, dom, direct, prox);
+    }
+
     @Nonnull
     @Override
     public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
 
-        UserHistory<Rating> history = dao.getEventsForUser(user, Rating.class);
+        final long start = HIRMetrics.SCORE_TOTAL.start();
+        final HIRModelHolder.Snapshot snapshot = models.current();
+        final HIRModel model = snapshot.getModel();
+        UserHistory<Rating> history = snapshot.getDAO(dao).getEventsForUser(user, Rating.class);
 
         if (history == null) {
             history = History.forUser(user);
         }
-
         SparseVector historyVector = RatingVectorUserHistorySummarizer.makeRatingVector(history);
+        long phase = HIRMetrics.SCORE_HISTORY.stop(start);
 
-        List<Result> results = new ArrayList<>();
+        final ItemIndex index = model.getItemIndex();
+        ScoringBuffers buffers = ScoringBuffers.get(model.getItemCount(), model.getGenreCount());
+        double[] rankingVector = buffers.scores();
+        double[] profile = buffers.profile();
 
-        MutableSparseVector preferenceVector = MutableSparseVector.create(idao.getItemIds(), 0);
+        double total = historyVector.sum();
+        final double scale = total != 0 ? 1 / total : 1;
+
+        final double preferenceInResults = 1 - directAssociation - proximity;
 
-        double total = 0.0;
         for (VectorEntry e: historyVector.fast()) {
-            final long key = e.getKey();
-            final double value = e.getValue();
-            preferenceVector.set(key, value);
-            total += value;
+            final int item = index.indexOf(e.getKey());
+            if (item >= 0) {
+                rankingVector[item] += preferenceInResults * e.getValue() * scale;
+            }
         }
+        phase = HIRMetrics.SCORE_PREFERENCE.stop(phase);
 
-        if (total != 0) {
-            preferenceVector.multiply(1/total);
+        for (VectorEntry e: historyVector.fast()) {
+            final double prefValue = e.getValue() * scale;
+            final int item = index.indexOf(e.getKey());
+            if (prefValue != 0 && item >= 0) {
+                model.addCoratings(item, directAssociation * prefValue, rankingVector);
+            }
         }
+        phase = HIRMetrics.SCORE_DIRECT.stop(phase);
 
-        final double preferenceInResults = 1 - directAssociation - proximity;
-        MutableSparseVector rankingVector = preferenceVector.copy();
-        rankingVector.multiply(preferenceInResults);
+        for (VectorEntry e: historyVector.fast()) {
+            final double prefValue = e.getValue() * scale;
+            final int item = index.indexOf(e.getKey());
+            if (prefValue != 0 && item >= 0) {
+                model.addGenreProfile(item, prefValue, profile);
+            }
+        }
+        model.addProximity(profile, proximity, rankingVector);
+        phase = HIRMetrics.SCORE_PROXIMITY.stop(phase);
 
-        for (VectorEntry e: preferenceVector.fast()) {
-            final double prefValue = e.getValue();
-            if (prefValue != 0) {
-                final long prefKey = e.getKey();
-                MutableSparseVector coratingsVector = model.getCoratingsVector(prefKey, items);
-                coratingsVector.multiply(directAssociation);
+        List<Result> results = new ArrayList<>(items.size());
+        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        while (iter.hasNext()) {
+            final long key = iter.nextLong();
+            final int item = index.indexOf(key);
+            if (item >= 0 && !historyVector.containsKey(key)) {
+                results.add(Results.create(key, rankingVector[item]));
+            }
+        }
+        buffers.releaseAll(model.getItemCount());
+        HIRMetrics.SCORE_RESULTS.stop(phase);
+        HIRMetrics.SCORE_TOTAL.stop(start);
+        HIRMetrics.HISTORY_LENGTH.record(historyVector.size());
+        HIRMetrics.CANDIDATE_COUNT.record(items.size());
 
-                MutableSparseVector proximityVector = model.getProximityVector(prefKey, items);
-                proximityVector.multiply(proximity);
+        return Results.newResultMap(results);
 
-                coratingsVector.add(proximityVector);
-                coratingsVector.multiply(prefValue);
+    }
+
+    /**
+     * Recommends the {@code n} highest-scoring items for a user without scoring the
+     * whole catalog. Items corated with the user's history get exact scores. Every
+     * other item scores only its proximity, which is the same for all items with
+     * the same genre signature. The signatures are therefore visited from the best
+     * proximity down, and the walk stops once the worst score in the top {@code n}
+     * beats the next signature's proximity.
+     *
+     * @param user       The user.
+     * @param n          The number of recommendations.
+     * @param candidates The items to choose from, or {@code null} for all items.
+     * @param exclude    Items to leave out besides those the user has rated, or {@code null}.
+     * @return The recommendations, highest score first.
+     */
+    public List<Result> recommend(long user, int n, @Nullable Set<Long> candidates,
+                                  @Nullable Set<Long> exclude) {
+        final long start = HIRMetrics.SCORE_TOTAL.start();
+        final HIRModelHolder.Snapshot snapshot = models.current();
+        final HIRModel model = snapshot.getModel();
+        UserHistory<Rating> history = snapshot.getDAO(dao).getEventsForUser(user, Rating.class);
+        if (history == null) {
+            history = History.forUser(user);
+        }
+        SparseVector historyVector = RatingVectorUserHistorySummarizer.makeRatingVector(history);
+        long phase = HIRMetrics.SCORE_HISTORY.stop(start);
+
+        final ItemIndex index = model.getItemIndex();
+        final ItemGenreBits genres = model.getGenreBits();
+        ScoringBuffers buffers = ScoringBuffers.get(model.getItemCount(), model.getGenreCount());
+        double[] scores = buffers.scores();
+        double[] profile = buffers.profile();
+        long[] marks = buffers.marks();
+        int[] touched = buffers.touched();
+        int touchedCount = 0;
+
+        double total = historyVector.sum();
+        final double scale = total != 0 ? 1 / total : 1;
+        phase = HIRMetrics.SCORE_PREFERENCE.stop(phase);
 
-                rankingVector.add(coratingsVector);
+        for (VectorEntry e: historyVector.fast()) {
+            final double prefValue = e.getValue() * scale;
+            final int item = index.indexOf(e.getKey());
+            if (prefValue != 0 && item >= 0) {
+                touchedCount = model.addCoratings(item, directAssociation * prefValue, scores,
+                                                  marks, touched, touchedCount);
             }
         }
+        phase = HIRMetrics.SCORE_DIRECT.stop(phase);
 
-        for (VectorEntry e: rankingVector.fast()) {
-            final long key = e.getKey();
-            if (!historyVector.containsKey(key)) {
-                results.add(Results.create(key, e.getValue()));
+        for (VectorEntry e: historyVector.fast()) {
+            final double prefValue = e.getValue() * scale;
+            final int item = index.indexOf(e.getKey());
+            if (prefValue != 0 && item >= 0) {
+                model.addGenreProfile(item, prefValue, profile);
             }
         }
+        final int signatureSize = model.getSignatureCount();
+        final double[] bounds = ScoringBuffers.signatures(signatureSize);
+        model.signatureProximity(profile, bounds);
+        for (int sig = 0; sig < signatureSize; sig++) {
+            bounds[sig] *= proximity;
+        }
+        phase = HIRMetrics.SCORE_PROXIMITY.stop(phase);
 
-        return Results.newResultMap(results);
+        TopNAccumulator accum = new TopNAccumulator(n);
+        int visited = 0;
+        if (candidates != null) {
+            for (long key : candidates) {
+                final int item = index.indexOf(key);
+                if (item >= 0 && !historyVector.containsKey(key)
+                        && (exclude == null || !exclude.contains(key))) {
+                    accum.put(key, scores[item] + bounds[genres.signatureOf(item)]);
+                }
+            }
+            visited = candidates.size();
+        } else {
+            for (int k = 0; k < touchedCount; k++) {
+                final int item = touched[k];
+                final long key = index.getId(item);
+                if (!historyVector.containsKey(key) && (exclude == null || !exclude.contains(key))) {
+                    accum.put(key, scores[item] + bounds[genres.signatureOf(item)]);
+                }
+            }
+            visited = touchedCount;
 
+            final int[] order = ScoringBuffers.order(signatureSize);
+            for (int sig = 0; sig < signatureSize; sig++) {
+                order[sig] = sig;
+            }
+            IntArrays.quickSort(order, 0, signatureSize, new AbstractIntComparator() {
+                @Override
+                public int compare(int a, int b) {
+                    return Double.compare(bounds[b], bounds[a]);
+                }
+            });
+            for (int i = 0; i < signatureSize; i++) {
+                final int sig = order[i];
+                final double bound = bounds[sig];
+                if (accum.isFull() && bound <= accum.threshold()) {
+                    break;
+                }
+                final int end = genres.signatureEnd(sig);
+                for (int pos = genres.signatureStart(sig); pos < end; pos++) {
+                    final int item = genres.signatureItem(pos);
+                    if ((marks[item >>> 6] & (1L << item)) != 0) {
+                        continue;
+                    }
+                    final long key = index.getId(item);
+                    if (!historyVector.containsKey(key) && (exclude == null || !exclude.contains(key))) {
+                        visited++;
+                        accum.put(key, bound);
+                        if (accum.isFull() && bound <= accum.threshold()) {
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        buffers.release(touched, touchedCount);
+        List<Result> results = accum.finish();
+        HIRMetrics.SCORE_RESULTS.stop(phase);
+        HIRMetrics.SCORE_TOTAL.stop(start);
+        HIRMetrics.HISTORY_LENGTH.record(historyVector.size());
+        HIRMetrics.CANDIDATE_COUNT.record(visited);
+        return results;
     }
 
+    /**
+     * @return The model currently used for scoring.
+     */
     public HIRModel getModel() {
-        return model;
+        return models.get();
+    }
+
+    /**
+     * Creates a recommender that scores blocks of users with the current model,
+     * histories and weights.
+     *
+     * @return The batch recommender.
+     */
+    HIRBatchRecommender batchRecommender() {
+        HIRModelHolder.Snapshot snapshot = models.current();
+        return new HIRBatchRecommender(snapshot.getDAO(dao), snapshot.getModel(), directAssociation, proximity,
+                                       HIRBatchRecommender.DEFAULT_BLOCK_SIZE);
     }
 }
@@ -0,0 +1,354 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics for model building, scoring and serving: phase timers, value
+ * distributions, event counters and gauges describing the most recent model. They are published over JMX as the
+ * {@code org.grouplens.lenskit.hello:type=HIRMetrics} MBean.
+ * <p>
+ * Setting the system property {@code org.grouplens.lenskit.hello.metrics} to
+ * {@code false} switches metrics off entirely: nothing is registered and every
+ * recording method returns at once, which the JIT reduces to nothing.
+ */
+
+public final class HIRMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(HIRMetrics.class);
+
+    /**
+     * The system property that switches metrics on or off.
+     */
+    public static final String ENABLED_PROPERTY = "org.grouplens.lenskit.hello.metrics";
+
+    static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+
+    private static final Map<String, Histogram> TIMERS = new LinkedHashMap<>();
+    private static final Map<String, Histogram> DISTRIBUTIONS = new LinkedHashMap<>();
+    private static final Map<String, AtomicLong> COUNTERS = new LinkedHashMap<>();
+    private static final Map<String, AtomicLong> GAUGES = new LinkedHashMap<>();
+
+    static final Timer BUILD_TOTAL = timer("build.total");
+    static final Timer BUILD_COLLECT = timer("build.collect");
+    static final Timer BUILD_CORATINGS = timer("build.coratings");
+    static final Timer BUILD_NORMALIZE = timer("build.normalize");
+    static final Timer BUILD_GENRES = timer("build.genres");
+
+    static final Timer SCORE_TOTAL = timer("score.total");
+    static final Timer SCORE_HISTORY = timer("score.history");
+    static final Timer SCORE_PREFERENCE = timer("score.preference");
+    static final Timer SCORE_DIRECT = timer("score.direct");
+    static final Timer SCORE_PROXIMITY = timer("score.proximity");
+    static final Timer SCORE_RESULTS = timer("score.results");
+
+    static final Timer SERVER_REQUEST = timer("server.request");
+
+    static final Distribution HISTORY_LENGTH = distribution("score.historyLength");
+    static final Distribution CANDIDATE_COUNT = distribution("score.candidates");
+
+    static final Counter CACHE_HITS = counter("cache.hits");
+    static final Counter CACHE_MISSES = counter("cache.misses");
+
+    static final Gauge MODEL_ITEMS = gauge("model.items");
+    static final Gauge MODEL_CORATINGS = gauge("model.coratings");
+    static final Gauge MODEL_SIGNATURES = gauge("model.signatures");
+    static final Gauge MODEL_BYTES = gauge("model.bytes");
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                                 .registerMBean(new MetricsBean(), new ObjectName("org.grouplens.lenskit.hello:type=HIRMetrics"));
+            } catch (JMException e) {
+                logger.warn("could not register metrics MBean", e);
+            }
+        }
+    }
+
+    private HIRMetrics() {
+    }
+
+    /**
+     * @return Whether metrics are being recorded.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Records the size of a model that has just been built, loaded or installed
+     * for serving. Copies made along the way, such as reduced-precision
+     * conversions and updates, are not recorded until they are published.
+     *
+     * @param model The model.
+     */
+    static void recordModel(HIRModel model) {
+        if (ENABLED) {
+            MODEL_ITEMS.set(model.getItemCount());
+            MODEL_CORATINGS.set(model.getCoratingMatrix().getEntryCount());
+            MODEL_SIGNATURES.set(model.getSignatureCount());
+            MODEL_BYTES.set(model.estimateSize());
+        }
+    }
+
+    /**
+     * Clears all timers, distributions and counters. Gauges keep their values.
+     */
+    public static void reset() {
+        for (Histogram h : TIMERS.values()) {
+            h.reset();
+        }
+        for (Histogram h : DISTRIBUTIONS.values()) {
+            h.reset();
+        }
+        for (AtomicLong c : COUNTERS.values()) {
+            c.set(0);
+        }
+    }
+
+    /**
+     * Takes a snapshot of all metrics, as they are published over JMX.
+     * Times are in microseconds.
+     *
+     * @return The metric values by name.
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Histogram> e : TIMERS.entrySet()) {
+            Histogram h = e.getValue();
+            String name = e.getKey();
+            values.put(name + ".count", h.getCount());
+            values.put(name + ".meanMicros", h.getMean() / 1000);
+            values.put(name + ".p50Micros", h.getQuantile(0.5) / 1000.0);
+            values.put(name + ".p99Micros", h.getQuantile(0.99) / 1000.0);
+            values.put(name + ".maxMicros", h.getMax() / 1000.0);
+        }
+        for (Map.Entry<String, Histogram> e : DISTRIBUTIONS.entrySet()) {
+            Histogram h = e.getValue();
+            String name = e.getKey();
+            values.put(name + ".count", h.getCount());
+            values.put(name + ".total", h.getSum());
+            values.put(name + ".mean", h.getMean());
+            values.put(name + ".p50", h.getQuantile(0.5));
+            values.put(name + ".p99", h.getQuantile(0.99));
+            values.put(name + ".max", h.getMax());
+        }
+        for (Map.Entry<String, AtomicLong> e : COUNTERS.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, AtomicLong> e : GAUGES.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        return values;
+    }
+
+    private static Timer timer(String name) {
+        Histogram h = new Histogram();
+        TIMERS.put(name, h);
+        return new Timer(h);
+    }
+
+    private static Distribution distribution(String name) {
+        Histogram h = new Histogram();
+        DISTRIBUTIONS.put(name, h);
+        return new Distribution(h);
+    }
+
+    private static Counter counter(String name) {
+        AtomicLong value = new AtomicLong();
+        COUNTERS.put(name, value);
+        return new Counter(value);
+    }
+
+    private static Gauge gauge(String name) {
+        AtomicLong value = new AtomicLong();
+        GAUGES.put(name, value);
+        return new Gauge(value);
+    }
+
+    /**
+     * Times a phase. Call {@link #start()} before the phase and pass its result to
+     * {@link #stop(long)} after it.
+     */
+    static final class Timer {
+        private final Histogram histogram;
+
+        private Timer(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        /**
+         * @return The start time of the phase, or 0 when metrics are off.
+         */
+        long start() {
+            return ENABLED ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Records the end of a phase.
+         *
+         * @param start The value returned by {@link #start()}.
+         * @return The end time, which can start the next phase.
+         */
+        long stop(long start) {
+            if (!ENABLED) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            histogram.record(now - start);
+            return now;
+        }
+    }
+
+    /**
+     * Records the distribution of a per-request quantity.
+     */
+    static final class Distribution {
+        private final Histogram histogram;
+
+        private Distribution(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        void record(long value) {
+            if (ENABLED) {
+                histogram.record(value);
+            }
+        }
+    }
+
+    /**
+     * Counts occurrences of an event.
+     */
+    static final class Counter {
+        private final AtomicLong value;
+
+        private Counter(AtomicLong value) {
+            this.value = value;
+        }
+
+        void increment() {
+            if (ENABLED) {
+                value.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Holds the latest value of a quantity.
+     */
+    static final class Gauge {
+        private final AtomicLong value;
+
+        private Gauge(AtomicLong value) {
+            this.value = value;
+        }
+
+        void set(long v) {
+            if (ENABLED) {
+                value.set(v);
+            }
+        }
+    }
+
+    /**
+     * Publishes the {@linkplain #snapshot() snapshot} as read-only attributes, with
+     * a {@code reset} operation.
+     */
+    private static class MetricsBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String name : attributes) {
+                Number value = values.get(name);
+                if (value != null) {
+                    list.add(new Attribute(name, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if ("reset".equals(actionName)) {
+                reset();
+                return null;
+            }
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                                                      e.getKey(), true, false, false));
+            }
+            MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears the timers, distributions and counters",
+                                                              new MBeanParameterInfo[0], "void",
+                                                              MBeanOperationInfo.ACTION);
+            return new MBeanInfo(HIRMetrics.class.getName(), "HIR model build and scoring metrics",
+                                 attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                                 null, new MBeanOperationInfo[]{reset}, null);
+        }
+    }
+}
@@ -22,21 +22,20 @@
 
 package org.grouplens.lenskit.hello;
 
-import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongIterators;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
 import org.grouplens.grapht.annotation.DefaultProvider;
-import org.grouplens.lenskit.vectors.ImmutableSparseVector;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
 import org.lenskit.inject.Shareable;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A model for a {@link HIRItemScorer}.
@@ -46,6 +45,13 @@ import java.util.Map;
 /**
  * A model for a {@link HIRItemScorer}.
  * Stores calculated proximity values and number of co-rating users for each item pair.
+ * The {@code add*} methods accumulate into caller-owned dense arrays indexed by item
+ * index or genre, so scoring with them allocates nothing; the {@link ItemIndex}
+ * of the model maps between item IDs and those indexes.
+ * <p>
+ * The proximity of two items depends only on their genre signatures, so proximity
+ * is computed once per distinct signature and spread to the items sharing it.
+ * Proximity rows are cached by signature and shared by all users of the model.
  */
 
 @DefaultProvider(HIRModelBuilder.class)
@@ -55,55 +61,443 @@ public class HIRModel implements Serializable {
 
     private static final long serialVersionUID  = 1L;
 
-    private final RealMatrix cmatrix;
+    private final ItemIndex index;
 
-    private final RealMatrix xmatrix;
+    private final SparseRowMatrix cmatrix;
 
-    private final RealMatrix ymatrix;
+    private final double[] ctotals;
 
-    public HIRModel(RealMatrix cmatrix,
-                    RealMatrix xmatrix,
-                    RealMatrix ymatrix) {
+    private final ItemGenreBits genres;
+
+    private final double[] genreWeights;
+
+    private transient AtomicReferenceArray<double[]> proximityRows;
+
+    /**
+     * @param index   The index of the items in the rows and columns of the matrices.
+     * @param cmatrix The row-normalized direct-association matrix.
+     * @param ctotals The number of coratings in each row of {@code cmatrix} before normalization.
+     * @param genres  The genre sets of the items, which make up the row-stochastic factor
+     *                of the proximity matrix once divided by their sizes.
+     * @param genreWeights The weight of each genre in the transposed factor of the proximity
+     *                matrix, one over the number of items in the genre.
+     */
+    public HIRModel(ItemIndex index,
+                    SparseRowMatrix cmatrix,
+                    double[] ctotals,
+                    ItemGenreBits genres,
+                    double[] genreWeights) {
+        this.index = index;
         this.cmatrix = cmatrix;
-        this.xmatrix = xmatrix;
-        this.ymatrix = ymatrix;
+        this.ctotals = ctotals;
+        this.genres = genres;
+        this.genreWeights = genreWeights;
+        init();
+    }
+
+    private void init() {
+        proximityRows = new AtomicReferenceArray<>(genres.getSignatureCount());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+    }
+
+    /**
+     * @return The mapping between item IDs and the indexes used by the model.
+     */
+    public ItemIndex getItemIndex() {
+        return index;
+    }
+
+    SparseRowMatrix getCoratingMatrix() {
+        return cmatrix;
+    }
+
+    /**
+     * Converts the direct-association matrix to another precision. The rest of
+     * the model is shared with this one.
+     *
+     * @param precision The precision of the new model's direct-association matrix.
+     * @return A model storing its coratings in the given precision, or this model
+     *         if it already does.
+     */
+    public HIRModel withPrecision(ValuePrecision precision) {
+        if (precision == cmatrix.getPrecision()) {
+            return this;
+        }
+        return new HIRModel(index, cmatrix.withPrecision(precision), ctotals, genres, genreWeights);
+    }
+
+    double[] getCoratingTotals() {
+        return ctotals;
+    }
+
+    ItemGenreBits getGenreBits() {
+        return genres;
+    }
+
+    double[] getGenreWeights() {
+        return genreWeights;
     }
 
     public MutableSparseVector getCoratingsVector(long item, Collection<Long> items) {
 
-        RealVector data = cmatrix.getRowVector((int) item);
+        MutableSparseVector forResults = MutableSparseVector.create(items, 0);
 
-        Map<Long, Double> forResults = new HashMap<>();
+        final int row = index.indexOf(item);
+        if (row < 0) {
+            return forResults;
+        }
+        final int end = cmatrix.rowEnd(row);
+        for (int pos = cmatrix.rowStart(row); pos < end; pos++) {
+            final long meti = index.getId(cmatrix.columnAt(pos));
+            if (forResults.containsKey(meti)) {
+                forResults.set(meti, cmatrix.valueAt(pos));
+            }
+        }
 
-        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        return forResults;
+
+    }
+
+    public MutableSparseVector getProximityVector(long item, Collection<Long> items) {
+
+        MutableSparseVector forResults = MutableSparseVector.create(items, 0);
+
+        final int row = index.indexOf(item);
+        if (row < 0) {
+            return forResults;
+        }
+        double[] proximities = getSignatureProximity(genres.signatureOf(row));
 
-        int i = 0;
+        LongIterator iter = LongIterators.asLongIterator(items.iterator());
         while (iter.hasNext()) {
             final long meti = iter.nextLong();
-            forResults.put(meti, data.getEntry(i));
-            i++;
+            final int column = index.indexOf(meti);
+            if (column >= 0) {
+                forResults.set(meti, proximities[genres.signatureOf(column)]);
+            }
         }
 
-        return MutableSparseVector.create(forResults);
+        return forResults;
+    }
 
+    /**
+     * Gets the proximity row of a genre signature: the proximity of every signature
+     * to it. Rows are computed on first use and cached; the returned array is shared
+     * and must not be modified.
+     *
+     * @param signature The signature number.
+     * @return The proximity of each signature, indexed by signature number.
+     */
+    double[] getSignatureProximity(int signature) {
+        double[] row = proximityRows.get(signature);
+        if (row == null) {
+            row = computeSignatureProximity(signature);
+            if (!proximityRows.compareAndSet(signature, null, row)) {
+                row = proximityRows.get(signature);
+            }
+        }
+        return row;
     }
 
-    public MutableSparseVector getProximityVector(long item, Collection<Long> items) {
+    private double[] computeSignatureProximity(int signature) {
+        final int signatureSize = genres.getSignatureCount();
+        final int words = genres.getWordCount();
+        double[] row = new double[signatureSize];
+        final int count = genres.signatureGenreCount(signature);
+        if (count == 0) {
+            return row;
+        }
+        final double share = 1.0 / count;
+        for (int t = 0; t < signatureSize; t++) {
+            double sum = 0;
+            for (int w = 0; w < words; w++) {
+                long word = genres.signatureWord(signature, w) & genres.signatureWord(t, w);
+                while (word != 0) {
+                    sum += genreWeights[(w << 6) + Long.numberOfTrailingZeros(word)];
+                    word &= word - 1;
+                }
+            }
+            row[t] = share * sum;
+        }
+        return row;
+    }
+
+    /**
+     * Computes the proximity of the requested items to a weighted set of items.
+     * Since the proximity matrix factorizes through the genres, the weighted rows
+     * of the first factor are collapsed into one genre profile, which is then
+     * multiplied by the second factor once. The result equals the weighted sum of
+     * {@link #getProximityVector(long, Collection)} over the weighted items.
+     *
+     * @param weights The weight of each item, such as a user preference vector.
+     * @param items   The items to compute the proximity for.
+     * @return The weighted proximity of each requested item.
+     */
+    public MutableSparseVector getProximityVector(SparseVector weights, Collection<Long> items) {
+
+        double[] profile = new double[getGenreCount()];
+        for (VectorEntry e : weights.fast()) {
+            final double weight = e.getValue();
+            final int row = index.indexOf(e.getKey());
+            if (weight != 0 && row >= 0) {
+                addGenreProfile(row, weight, profile);
+            }
+        }
+        return toVector(profile, items);
+    }
 
-        RealVector data = xmatrix.getRowVector((int) item);
-        RealVector resM = ymatrix.preMultiply(data);
+    private MutableSparseVector toVector(double[] profile, Collection<Long> items) {
 
-        Map<Long, Double> forResults = new HashMap<>();
+        double[] resM = new double[getItemCount()];
+        addProximity(profile, 1, resM);
 
-        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        MutableSparseVector forResults = MutableSparseVector.create(items, 0);
 
-        int i = 0;
+        LongIterator iter = LongIterators.asLongIterator(items.iterator());
         while (iter.hasNext()) {
             final long meti = iter.nextLong();
-            forResults.put(meti, resM.getEntry(i));
-            i++;
+            final int column = index.indexOf(meti);
+            if (column >= 0) {
+                forResults.set(meti, resM[column]);
+            }
+        }
+
+        return forResults;
+    }
+
+    /**
+     * @return The number of items covered by the model.
+     */
+    public int getItemCount() {
+        return cmatrix.getRowDimension();
+    }
+
+    /**
+     * @return The number of genres in the proximity factors.
+     */
+    public int getGenreCount() {
+        return genreWeights.length;
+    }
+
+    /**
+     * Estimates the memory taken by the model's arrays, whether on the heap or
+     * mapped from a file, including the proximity rows cached so far.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long estimateSize() {
+        final long itemSize = getItemCount();
+        final long entries = cmatrix.getEntryCount();
+        final long signatureSize = genres.getSignatureCount();
+        final ValuePrecision precision = cmatrix.getPrecision();
+        // item IDs, corating matrix (with row scales if quantized) and totals, genre signatures and weights
+        long size = 8 * itemSize
+                + 4 * (itemSize + 1) + (4 + precision.getBytes()) * entries
+                + (precision.isQuantized() ? 8 * itemSize : 0)
+                + 8 * itemSize
+                + 4 * itemSize + 8 * signatureSize * genres.getWordCount()
+                + 8 * genreWeights.length;
+        for (int s = 0; s < signatureSize; s++) {
+            if (proximityRows.get(s) != null) {
+                size += 8 * signatureSize;
+            }
         }
+        return size;
+    }
+
+    /**
+     * @return The number of distinct genre signatures among the items.
+     */
+    public int getSignatureCount() {
+        return genres.getSignatureCount();
+    }
 
-        return MutableSparseVector.create(forResults);
+    /**
+     * Adds a weighted row of the direct-association matrix to a dense score array.
+     *
+     * @param item   The index of the item whose coratings are added.
+     * @param weight The weight of the row.
+     * @param scores The scores, indexed by item index.
+     */
+    public void addCoratings(int item, double weight, double[] scores) {
+        cmatrix.addRow(item, weight, scores);
+    }
+
+    /**
+     * Adds a row of the direct-association matrix to the score arrays of a block of
+     * users, each with its own weight. The row is read once for the whole block.
+     *
+     * @param item    The index of the item whose coratings are added.
+     * @param weights The weight of the row for each user.
+     * @param scores  The scores of each user, indexed by item index.
+     * @param count   The number of users.
+     */
+    public void addCoratings(int item, double[] weights, double[][] scores, int count) {
+        cmatrix.addRow(item, weights, scores, count);
+    }
+
+    /**
+     * Adds a weighted row of the direct-association matrix to a dense score array,
+     * and lists the items it reaches that no earlier call has reached.
+     *
+     * @param item    The index of the item whose coratings are added.
+     * @param weight  The weight of the row.
+     * @param scores  The scores, indexed by item index.
+     * @param marks   A bit set of the items reached so far, updated by this call.
+     * @param touched The list of items reached so far.
+     * @param count   The length of the list.
+     * @return The new length of the list.
+     */
+    public int addCoratings(int item, double weight, double[] scores,
+                            long[] marks, int[] touched, int count) {
+        cmatrix.addRow(item, weight, scores);
+        return cmatrix.markRow(item, marks, touched, count);
+    }
+
+    /**
+     * Adds a weighted row of the first proximity factor to a genre profile.
+     * The row is the item's genre set divided by its size.
+     *
+     * @param item    The index of the item whose genres are added.
+     * @param weight  The weight of the row.
+     * @param profile The genre profile, indexed by genre.
+     */
+    public void addGenreProfile(int item, double weight, double[] profile) {
+        final int count = genres.genreCount(item);
+        if (count == 0) {
+            return;
+        }
+        final double share = weight / count;
+        final int words = genres.getWordCount();
+        for (int w = 0; w < words; w++) {
+            long word = genres.word(item, w);
+            while (word != 0) {
+                profile[(w << 6) + Long.numberOfTrailingZeros(word)] += share;
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * Adds a row of the first proximity factor to the genre profiles of a block of
+     * users, each with its own weight.
+     *
+     * @param item     The index of the item whose genres are added.
+     * @param weights  The weight of the row for each user.
+     * @param profiles The genre profile of each user, indexed by genre.
+     * @param count    The number of users.
+     */
+    public void addGenreProfile(int item, double[] weights, double[][] profiles, int count) {
+        final int genreCount = genres.genreCount(item);
+        if (genreCount == 0) {
+            return;
+        }
+        final int words = genres.getWordCount();
+        for (int w = 0; w < words; w++) {
+            long word = genres.word(item, w);
+            while (word != 0) {
+                final int g = (w << 6) + Long.numberOfTrailingZeros(word);
+                for (int k = 0; k < count; k++) {
+                    profiles[k][g] += weights[k] / genreCount;
+                }
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * Computes the proximity of each genre signature to a genre profile: the sum
+     * of the profile over the signature's genres, each weighted by the genre's
+     * weight in the second proximity factor. The profile is weighted once, so
+     * that each signature only adds up its genres.
+     */
+    void signatureProximity(double[] profile, double[] proximities) {
+        final int signatureSize = genres.getSignatureCount();
+        final int words = genres.getWordCount();
+        final int genreSize = genreWeights.length;
+        final double[] weighted = ScoringBuffers.genres(genreSize);
+        ScoreKernels.multiply(profile, genreWeights, weighted, genreSize);
+        for (int s = 0; s < signatureSize; s++) {
+            double sum = 0;
+            for (int w = 0; w < words; w++) {
+                long word = genres.signatureWord(s, w);
+                while (word != 0) {
+                    sum += weighted[(w << 6) + Long.numberOfTrailingZeros(word)];
+                    word &= word - 1;
+                }
+            }
+            proximities[s] = sum;
+        }
+    }
+
+    /**
+     * Multiplies a genre profile by the second proximity factor and adds the
+     * weighted product to a dense score array. The product is computed once per
+     * genre signature and copied to the items that share it.
+     *
+     * @param profile The genre profile, indexed by genre.
+     * @param weight  The weight of the proximity scores.
+     * @param scores  The scores, indexed by item index.
+     */
+    public void addProximity(double[] profile, double weight, double[] scores) {
+        if (weight == 0) {
+            return;
+        }
+        final int signatureSize = genres.getSignatureCount();
+        double[] proximities = ScoringBuffers.signatures(signatureSize);
+        signatureProximity(profile, proximities);
+        ScoreKernels.scale(proximities, weight, signatureSize);
+        ScoreKernels.gatherAdd(genres.getSignatures(), proximities, getItemCount(), scores);
+    }
+
+    /**
+     * Multiplies a block of genre profiles by the second proximity factor and adds
+     * the weighted products to the matching score arrays. The weighted profiles are
+     * transposed so that the users of the block lie next to each other; each genre
+     * signature is then decoded once and adds up its genres for the whole block.
+     * Each score array receives the same sums as from
+     * {@link #addProximity(double[], double, double[])}.
+     *
+     * @param profiles The genre profiles.
+     * @param weight   The weight of the proximity scores.
+     * @param scores   The score arrays, indexed by item index, one per profile.
+     * @param count    The number of profiles in the block.
+     */
+    public void addProximity(double[][] profiles, double weight, double[][] scores, int count) {
+        if (weight == 0 || count == 0) {
+            return;
+        }
+        final int genreSize = genreWeights.length;
+        final int signatureSize = genres.getSignatureCount();
+        final int words = genres.getWordCount();
+        double[][] weighted = new double[genreSize][count];
+        for (int u = 0; u < count; u++) {
+            for (int g = 0; g < genreSize; g++) {
+                weighted[g][u] = profiles[u][g] * genreWeights[g];
+            }
+        }
+        double[] sums = new double[count];
+        double[][] proximities = new double[count][signatureSize];
+        for (int s = 0; s < signatureSize; s++) {
+            Arrays.fill(sums, 0);
+            for (int w = 0; w < words; w++) {
+                long word = genres.signatureWord(s, w);
+                while (word != 0) {
+                    ScoreKernels.add(weighted[(w << 6) + Long.numberOfTrailingZeros(word)], sums, count);
+                    word &= word - 1;
+                }
+            }
+            for (int u = 0; u < count; u++) {
+                proximities[u][s] = sums[u] * weight;
+            }
+        }
+        final int[] signatures = genres.getSignatures();
+        for (int u = 0; u < count; u++) {
+            ScoreKernels.gatherAdd(signatures, proximities[u], getItemCount(), scores[u]);
+        }
     }
 }
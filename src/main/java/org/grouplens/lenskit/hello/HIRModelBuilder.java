@@ -21,16 +21,29 @@
 
 package org.grouplens.lenskit.hello;
 
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongIterator;
-import it.unimi.dsi.fastutil.longs.LongSet;
-import org.grouplens.lenskit.vectors.SparseVector;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.grouplens.lenskit.vectors.VectorEntry;
 import org.lenskit.data.dao.ItemDAO;
+import org.lenskit.data.dao.UserEventDAO;
 import org.lenskit.inject.Transient;
 import org.lenskit.knn.item.model.ItemItemBuildContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import javax.inject.Provider;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Pre-computes the number of mutual rating users for every pair
@@ -43,46 +56,327 @@ import javax.inject.Provider;
 
 @SuppressWarnings("deprecation")
 public class HIRModelBuilder implements Provider<HIRModel> {
+    private static final Logger logger = LoggerFactory.getLogger(HIRModelBuilder.class);
 
+    /**
+     * The number of rows of an approximate corating matrix compared with exact counts.
+     */
+    private static final int ERROR_SAMPLE_ROWS = 100;
 
-    private final DirectAssociationMatrix DAMatrix;
-
-    private final RowStochasticFactorOfProximity RSMatrix;
+    /**
+     * The number of users whose recommendations are compared when the model's
+     * precision is reduced.
+     */
+    private static final int AGREEMENT_SAMPLE_USERS = 100;
 
-    private final TransposedFactorOfProximity TFMatrix;
+    private final ItemGenreDAO genreDao;
 
     private final ItemItemBuildContext buildContext;
 
+    private final ItemIndex itemIndex;
+
+    private final int parallelism;
+
+    private final int sketchSize;
+
+    private final int bandRows;
+
+    private final ValuePrecision precision;
+
+    private final long memoryBudget;
+
+    private final File spillDirectory;
+
+    private final UserEventDAO userDao;
+
+    private final double directAssociation;
+
+    private final double proximity;
+
     @Inject
     public HIRModelBuilder(@Transient @Nonnull ItemDAO dao,
                            @Transient @Nonnull ItemGenreDAO gDao,
-                           @Transient ItemItemBuildContext context) {
+                           @Transient @Nonnull UserEventDAO uDao,
+                           @Transient ItemItemBuildContext context,
+                           @BuildParallelism int threads,
+                           @CoratingSketchSize int sketch,
+                           @CoratingSketchBandRows int rows,
+                           @ModelPrecision String valuePrecision,
+                           @CoratingMemoryBudget int budget,
+                           @SpillDirectory String spillDir,
+                           @DirectAssociationParameter double direct,
+                           @ProximityParameter double prox) {
+        Preconditions.checkArgument(budget <= 0 || sketch <= 0,
+                                    "a corating memory budget cannot be combined with sketches, "
+                                    + "which are kept in the heap");
 
         buildContext = context;
-        DAMatrix = new DirectAssociationMatrix(dao);
-        RSMatrix = new RowStochasticFactorOfProximity(dao, gDao);
-        TFMatrix = new TransposedFactorOfProximity(dao, gDao);
+        itemIndex = ItemIndex.fromItemIds(dao.getItemIds());
+        parallelism = threads;
+        genreDao = gDao;
+        sketchSize = sketch;
+        bandRows = rows;
+        precision = ValuePrecision.fromName(valuePrecision);
+        memoryBudget = budget * 1024L * 1024L;
+        spillDirectory = new File(spillDir.isEmpty() ? System.getProperty("java.io.tmpdir") : spillDir);
+        userDao = uDao;
+        directAssociation = direct;
+        proximity = prox;
     }
 
     /**
      * Constructs and returns a {@link HIRModel}.
+     * With a {@link BuildParallelism} above 1, corating counting and row
+     * normalization are sharded by item rows on a fork-join pool; the
+     * resulting model is identical to the one built serially.
+     * With a positive {@link CoratingSketchSize}, coratings are estimated from
+     * MinHash sketches, and the error of a sample of rows is logged.
+     * With a {@link ModelPrecision} other than {@code double}, the direct-association
+     * matrix is converted after the build, and the agreement of a sample of users'
+     * recommendations with those of the double model is logged.
+     * With a positive {@link CoratingMemoryBudget}, coratings are counted out of
+     * core, and the model is written to a file in the {@link SpillDirectory}
+     * and mapped from it. The budget and sketches are exclusive; the constructor
+     * rejects the combination.
+     * The time spent in each phase and the size of the result are recorded in {@link HIRMetrics}.
      */
 
     @Override
     public HIRModel get() {
-        LongSet items = buildContext.getItems();
-        LongIterator outer = items.iterator();
-        while (outer.hasNext()) {
-            final long item1 = outer.nextLong();
-            final SparseVector vec1 = buildContext.itemVector(item1);
-            LongIterator inner = items.iterator();
-            while (inner.hasNext()) {
-                final long item2 = inner.nextLong();
-                SparseVector vec2 = buildContext.itemVector(item2);
-                DAMatrix.putItemPair(item1, vec1, item2, vec2);
+        long start = HIRMetrics.BUILD_COLLECT.start();
+        Long2ObjectMap<IntList> userItems = collectUserItems();
+        Collection<IntList> users = userItems.values();
+        HIRMetrics.BUILD_COLLECT.stop(start);
+        HIRModel model;
+        if (memoryBudget > 0) {
+            try {
+                model = buildExternal(itemIndex, genreDao, users, parallelism,
+                                      memoryBudget, spillDirectory, precision);
+            } catch (IOException e) {
+                throw new RuntimeException("out-of-core model build failed", e);
+            }
+        } else {
+            model = build(itemIndex, genreDao, users, parallelism, sketchSize, bandRows);
+        }
+        if (sketchSize > 0 && logger.isInfoEnabled()) {
+            logger.info("estimated coratings from {}-value sketches; {}", sketchSize,
+                        MinHashCoratingMatrix.compareWithExact(model.getCoratingMatrix(), users,
+                                                               ERROR_SAMPLE_ROWS));
+        }
+        if (precision != model.getCoratingMatrix().getPrecision()) {
+            HIRModel reduced = model.withPrecision(precision);
+            if (logger.isInfoEnabled()) {
+                LongList sample = new LongArrayList(AGREEMENT_SAMPLE_USERS);
+                final int step = Math.max(1, userItems.size() / AGREEMENT_SAMPLE_USERS);
+                int k = 0;
+                LongIterator iter = userItems.keySet().iterator();
+                while (iter.hasNext()) {
+                    final long user = iter.nextLong();
+                    if (k++ % step == 0 && sample.size() < AGREEMENT_SAMPLE_USERS) {
+                        sample.add(user);
+                    }
+                }
+                logger.info("stored coratings as {} ({} bytes instead of {}); {}", precision,
+                            reduced.estimateSize(), model.estimateSize(),
+                            RankingAgreement.compare(model, reduced, userDao, sample, 10,
+                                                     directAssociation, proximity));
+            }
+            model = reduced;
+        }
+        HIRMetrics.recordModel(model);
+        return model;
+    }
+
+    /**
+     * Builds a model from the items rated by each user.
+     *
+     * @param itemIndex   The index of the model's items.
+     * @param gDao        The genres of the items.
+     * @param users       The indexes of the items rated by each user, in ascending order.
+     * @param parallelism The number of threads to build with.
+     * @return The model.
+     */
+    static HIRModel build(ItemIndex itemIndex, ItemGenreDAO gDao,
+                          final Collection<IntList> users, int parallelism) {
+        return build(itemIndex, gDao, users, parallelism, 0, 1);
+    }
+
+    /**
+     * Builds a model from the items rated by each user, optionally estimating
+     * the coratings from sketches.
+     *
+     * @param itemIndex   The index of the model's items.
+     * @param gDao        The genres of the items.
+     * @param users       The indexes of the items rated by each user, in ascending order.
+     * @param parallelism The number of threads to build with.
+     * @param sketchSize  The MinHash sketch size, or 0 to count coratings exactly.
+     * @param bandRows    The number of sketch positions in each LSH band.
+     * @return The model.
+     */
+    static HIRModel build(ItemIndex itemIndex, ItemGenreDAO gDao,
+                          final Collection<IntList> users, int parallelism,
+                          int sketchSize, int bandRows) {
+        if (sketchSize > 0) {
+            return buildApproximate(itemIndex, gDao, users, parallelism, sketchSize, bandRows);
+        }
+        final DirectAssociationMatrix DAMatrix = new DirectAssociationMatrix(itemIndex);
+        RowStochasticFactorOfProximity RSMatrix = new RowStochasticFactorOfProximity(itemIndex, gDao);
+        TransposedFactorOfProximity TFMatrix = new TransposedFactorOfProximity(itemIndex, gDao);
+        final long start = HIRMetrics.BUILD_TOTAL.start();
+
+        if (parallelism <= 1) {
+            long phase = HIRMetrics.BUILD_CORATINGS.start();
+            for (IntList userItems : users) {
+                DAMatrix.putUserItems(userItems);
             }
+            phase = HIRMetrics.BUILD_CORATINGS.stop(phase);
+            SparseRowMatrix cmatrix = DAMatrix.buildMatrix();
+            phase = HIRMetrics.BUILD_NORMALIZE.stop(phase);
+            ItemGenreBits genres = RSMatrix.RowStochastic();
+            double[] genreWeights = TFMatrix.ColumnStochastic();
+            HIRMetrics.BUILD_GENRES.stop(phase);
+            HIRModel model = new HIRModel(itemIndex, cmatrix, DAMatrix.getRowTotals(), genres, genreWeights);
+            HIRMetrics.BUILD_TOTAL.stop(start);
+            return model;
         }
 
-        return new HIRModel(DAMatrix.buildMatrix(), RSMatrix.RowStochastic(), TFMatrix.ColumnStochastic());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            long phase = HIRMetrics.BUILD_CORATINGS.start();
+            ParallelRows.forEach(pool, itemIndex.size(), new ParallelRows.Body() {
+                @Override
+                public void run(int start, int end) {
+                    for (IntList userItems : users) {
+                        DAMatrix.putUserItems(userItems, start, end);
+                    }
+                }
+            });
+            phase = HIRMetrics.BUILD_CORATINGS.stop(phase);
+            SparseRowMatrix cmatrix = DAMatrix.buildMatrix(pool);
+            phase = HIRMetrics.BUILD_NORMALIZE.stop(phase);
+            ItemGenreBits genres = RSMatrix.RowStochastic(pool);
+            double[] genreWeights = TFMatrix.ColumnStochastic(pool);
+            HIRMetrics.BUILD_GENRES.stop(phase);
+            HIRModel model = new HIRModel(itemIndex, cmatrix, DAMatrix.getRowTotals(), genres, genreWeights);
+            HIRMetrics.BUILD_TOTAL.stop(start);
+            return model;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Builds a model whose coratings are counted by an {@link ExternalCoratingMatrix},
+     * writes it to a file and maps it.
+     *
+     * @param itemIndex    The index of the model's items.
+     * @param gDao         The genres of the items.
+     * @param users        The indexes of the items rated by each user, in ascending order.
+     * @param parallelism  The number of threads to build the genre factors with.
+     * @param memoryBudget The number of bytes the corating buffers may use.
+     * @param directory    The directory for spilled runs and the model file.
+     * @param precision    The precision of the direct-association matrix.
+     * @return The model, mapped from a file that is deleted when the JVM exits.
+     * @throws IOException if there is an error writing or reading the build files.
+     */
+    static HIRModel buildExternal(ItemIndex itemIndex, ItemGenreDAO gDao, Collection<IntList> users,
+                                  int parallelism, long memoryBudget, File directory,
+                                  ValuePrecision precision) throws IOException {
+        RowStochasticFactorOfProximity RSMatrix = new RowStochasticFactorOfProximity(itemIndex, gDao);
+        TransposedFactorOfProximity TFMatrix = new TransposedFactorOfProximity(itemIndex, gDao);
+        final long start = HIRMetrics.BUILD_TOTAL.start();
+
+        ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        try (ExternalCoratingMatrix EXMatrix = new ExternalCoratingMatrix(itemIndex, memoryBudget, directory)) {
+            long phase = HIRMetrics.BUILD_CORATINGS.start();
+            for (IntList userItems : users) {
+                EXMatrix.putUserItems(userItems);
+            }
+            phase = HIRMetrics.BUILD_CORATINGS.stop(phase);
+            ItemGenreBits genres = RSMatrix.RowStochastic(pool);
+            double[] genreWeights = TFMatrix.ColumnStochastic(pool);
+            phase = HIRMetrics.BUILD_GENRES.stop(phase);
+
+            File file = File.createTempFile("hir-model", ".bin", directory);
+            file.deleteOnExit();
+            EXMatrix.writeModel(itemIndex, genres, genreWeights, precision, file);
+            HIRMetrics.BUILD_NORMALIZE.stop(phase);
+            HIRModel model = HIRModelFile.load(file);
+            HIRMetrics.BUILD_TOTAL.stop(start);
+            return model;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Builds a model whose coratings are estimated by a {@link MinHashCoratingMatrix}.
+     */
+    private static HIRModel buildApproximate(ItemIndex itemIndex, ItemGenreDAO gDao,
+                                             final Collection<IntList> users, int parallelism,
+                                             final int sketchSize, int bandRows) {
+        final MinHashCoratingMatrix MHMatrix = new MinHashCoratingMatrix(itemIndex, sketchSize, bandRows);
+        RowStochasticFactorOfProximity RSMatrix = new RowStochasticFactorOfProximity(itemIndex, gDao);
+        TransposedFactorOfProximity TFMatrix = new TransposedFactorOfProximity(itemIndex, gDao);
+        final long start = HIRMetrics.BUILD_TOTAL.start();
+
+        ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        try {
+            long phase = HIRMetrics.BUILD_CORATINGS.start();
+            ParallelRows.forEach(pool, itemIndex.size(), new ParallelRows.Body() {
+                @Override
+                public void run(int start, int end) {
+                    int[] hashes = new int[sketchSize];
+                    long user = 0;
+                    for (IntList userItems : users) {
+                        MHMatrix.putUserItems(user++, userItems, hashes, start, end);
+                    }
+                }
+            });
+            phase = HIRMetrics.BUILD_CORATINGS.stop(phase);
+            SparseRowMatrix cmatrix = MHMatrix.buildMatrix(pool);
+            phase = HIRMetrics.BUILD_NORMALIZE.stop(phase);
+            ItemGenreBits genres = RSMatrix.RowStochastic(pool);
+            double[] genreWeights = TFMatrix.ColumnStochastic(pool);
+            HIRMetrics.BUILD_GENRES.stop(phase);
+            HIRModel model = new HIRModel(itemIndex, cmatrix, MHMatrix.getRowTotals(), genres, genreWeights);
+            HIRMetrics.BUILD_TOTAL.stop(start);
+            return model;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Inverts the item rating vectors of the build context into the
+     * list of items rated by each user, so that coratings can be
+     * accumulated in a single pass over the user histories.
+     *
+     * @return The indexes of the items rated by each user, in ascending order, by user ID.
+     */
+    private Long2ObjectMap<IntList> collectUserItems() {
+        Long2ObjectMap<IntList> userItems = new Long2ObjectOpenHashMap<>();
+        LongIterator iter = buildContext.getItems().iterator();
+        while (iter.hasNext()) {
+            final long item = iter.nextLong();
+            final int index = itemIndex.indexOf(item);
+            if (index < 0) {
+                continue;
+            }
+            for (VectorEntry e : buildContext.itemVector(item).fast()) {
+                final long user = e.getKey();
+                IntList items = userItems.get(user);
+                if (items == null) {
+                    items = new IntArrayList();
+                    userItems.put(user, items);
+                }
+                items.add(index);
+            }
+        }
+        return userItems;
     }
 }
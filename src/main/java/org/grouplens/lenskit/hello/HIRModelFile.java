@@ -0,0 +1,499 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes {@link HIRModel}s in a versioned binary format.
+ * <p>
+ * The file holds a header followed by the sections of the model, all little-endian:
+ * <ol>
+ *     <li>header: magic, version, item count, column count, entry count, genre count,
+ *     {@link ValuePrecision} ordinal, and a reserved word</li>
+ *     <li>the item IDs, in index order</li>
+ *     <li>the row offsets of the direct-association matrix</li>
+ *     <li>its column indices, padded to a multiple of 8 bytes</li>
+ *     <li>its values in their precision, padded to a multiple of 8 bytes</li>
+ *     <li>for quantized values, the scale of each row</li>
+ *     <li>the number of coratings in each of its rows before normalization</li>
+ *     <li>the weight of each genre in the transposed proximity factor</li>
+ *     <li>the genre bit set of each item, {@link ItemGenreBits#wordCount(int)} words per item</li>
+ * </ol>
+ * Loading maps the file; the direct-association matrix is served straight from
+ * the mapping, so a model is ready to score without reading its rows. The item
+ * IDs and genre sets are small and are copied to the heap.
+ * <p>
+ * A {@link MatrixWriter} writes a model whose matrix is produced entry by entry,
+ * without holding it in memory.
+ */
+
+public final class HIRModelFile {
+    private static final Logger logger = LoggerFactory.getLogger(HIRModelFile.class);
+
+    /**
+     * The magic number at the start of every model file ("HIRM").
+     */
+    static final int MAGIC = 0x4849524d;
+
+    /**
+     * The version of the format written by this class.
+     */
+    static final int VERSION = 5;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private HIRModelFile() {
+    }
+
+    /**
+     * Writes a model. The file is written under a temporary name and moved into
+     * place, so processes that have mapped an earlier version keep a valid view.
+     *
+     * @param model The model to write.
+     * @param file  The destination file.
+     * @throws IOException if there is an error writing the file.
+     */
+    public static void write(HIRModel model, File file) throws IOException {
+        ItemIndex index = model.getItemIndex();
+        SparseRowMatrix cmatrix = model.getCoratingMatrix();
+        double[] ctotals = model.getCoratingTotals();
+        ItemGenreBits genres = model.getGenreBits();
+        double[] genreWeights = model.getGenreWeights();
+        final int itemSize = cmatrix.getRowDimension();
+        final int entries = cmatrix.getEntryCount();
+        final int genreSize = genreWeights.length;
+        final int words = genres.getWordCount();
+        final ValuePrecision precision = cmatrix.getPrecision();
+
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC).putInt(VERSION)
+                  .putInt(itemSize).putInt(cmatrix.getColumnDimension())
+                  .putInt(entries).putInt(genreSize)
+                  .putInt(precision.ordinal()).putInt(0);
+
+            for (int i = 0; i < itemSize; i++) {
+                ensure(channel, buffer, 8);
+                buffer.putLong(index.getId(i));
+            }
+
+            for (int i = 0; i < itemSize; i++) {
+                ensure(channel, buffer, 4);
+                buffer.putInt(cmatrix.rowStart(i));
+            }
+            ensure(channel, buffer, 4);
+            buffer.putInt(entries);
+            for (int pos = 0; pos < entries; pos++) {
+                ensure(channel, buffer, 4);
+                buffer.putInt(cmatrix.columnAt(pos));
+            }
+            if ((itemSize + 1 + entries) % 2 != 0) {
+                ensure(channel, buffer, 4);
+                buffer.putInt(0);
+            }
+            writeValues(channel, buffer, cmatrix.getValueBuffer(), precision);
+            long valueBytes = (long) entries * precision.getBytes();
+            for (long pad = align(valueBytes) - valueBytes; pad > 0; pad--) {
+                ensure(channel, buffer, 1);
+                buffer.put((byte) 0);
+            }
+            if (precision.isQuantized()) {
+                for (int i = 0; i < itemSize; i++) {
+                    ensure(channel, buffer, 8);
+                    buffer.putDouble(cmatrix.rowScale(i));
+                }
+            }
+            for (int i = 0; i < itemSize; i++) {
+                ensure(channel, buffer, 8);
+                buffer.putDouble(ctotals[i]);
+            }
+            for (int g = 0; g < genreSize; g++) {
+                ensure(channel, buffer, 8);
+                buffer.putDouble(genreWeights[g]);
+            }
+            for (int i = 0; i < itemSize; i++) {
+                for (int w = 0; w < words; w++) {
+                    ensure(channel, buffer, 8);
+                    buffer.putLong(genres.word(i, w));
+                }
+            }
+            flush(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("wrote HIR model with {} items and {} coratings to {}", itemSize, entries, file);
+    }
+
+    /**
+     * Loads a model by mapping its file.
+     *
+     * @param file The model file.
+     * @return The model.
+     * @throws IOException if the file cannot be read, is not a model file of this version,
+     *                     has a corrupt header or has a section larger than 2 GB.
+     */
+    public static HIRModel load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new IOException(String.format("%s: truncated header", file));
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException(String.format("%s: not a HIR model file", file));
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("%s: unsupported model version %d", file, version));
+            }
+            final int itemSize = header.getInt();
+            final int columnSize = header.getInt();
+            final int entries = header.getInt();
+            final int genreSize = header.getInt();
+            final int precisionCode = header.getInt();
+            if (precisionCode < 0 || precisionCode >= ValuePrecision.values().length) {
+                throw new IOException(String.format("%s: unknown value precision %d", file, precisionCode));
+            }
+            final ValuePrecision precision = ValuePrecision.values()[precisionCode];
+            if (itemSize < 0 || columnSize < 0 || entries < 0 || genreSize < 0) {
+                throw new IOException(String.format("%s: corrupt header, negative count", file));
+            }
+
+            long idsPos = HEADER_SIZE;
+            long offsetsPos = idsPos + 8L * itemSize;
+            long columnsPos = offsetsPos + 4L * (itemSize + 1);
+            long valuesPos = align(columnsPos + 4L * entries);
+            long valueBytes = (long) precision.getBytes() * entries;
+            long scalesPos = valuesPos + align(valueBytes);
+            long totalsPos = scalesPos + (precision.isQuantized() ? 8L * itemSize : 0);
+            final int words = ItemGenreBits.wordCount(genreSize);
+            long weightsPos = totalsPos + 8L * itemSize;
+            long bitsPos = weightsPos + 8L * genreSize;
+            long end = bitsPos + 8L * itemSize * words;
+            if (channel.size() < end) {
+                throw new IOException(String.format("%s: truncated model, expected %d bytes", file, end));
+            }
+            // Each section is mapped or copied whole, which limits it to 2 GB
+            checkSection(file, "item", 8L * itemSize);
+            checkSection(file, "corating column", 4L * entries);
+            checkSection(file, "corating value", valueBytes);
+            checkSection(file, "genre weight", 8L * genreSize);
+            checkSection(file, "genre set", 8L * itemSize * words);
+
+            long[] ids = new long[itemSize];
+            map(channel, idsPos, 8L * itemSize).asLongBuffer().get(ids);
+
+            ByteBuffer valueBytesView = map(channel, valuesPos, valueBytes);
+            Buffer values;
+            switch (precision) {
+            case DOUBLE:
+                values = valueBytesView.asDoubleBuffer();
+                break;
+            case FLOAT:
+                values = valueBytesView.asFloatBuffer();
+                break;
+            case SHORT:
+                values = valueBytesView.asShortBuffer();
+                break;
+            default:
+                values = valueBytesView;
+            }
+            SparseRowMatrix cmatrix = new SparseRowMatrix(
+                    columnSize,
+                    map(channel, offsetsPos, 4L * (itemSize + 1)).asIntBuffer(),
+                    map(channel, columnsPos, 4L * entries).asIntBuffer(),
+                    values,
+                    precision.isQuantized() ? map(channel, scalesPos, 8L * itemSize).asDoubleBuffer() : null,
+                    precision);
+            double[] ctotals = new double[itemSize];
+            map(channel, totalsPos, 8L * itemSize).asDoubleBuffer().get(ctotals);
+            double[] genreWeights = new double[genreSize];
+            map(channel, weightsPos, 8L * genreSize).asDoubleBuffer().get(genreWeights);
+            long[] bits = new long[itemSize * words];
+            map(channel, bitsPos, 8L * itemSize * words).asLongBuffer().get(bits);
+
+            logger.info("mapped HIR model with {} items and {} {} coratings from {}",
+                        itemSize, entries, precision, file);
+            return new HIRModel(new ItemIndex(ids), cmatrix, ctotals,
+                                new ItemGenreBits(itemSize, genreSize, bits), genreWeights);
+        }
+    }
+
+    /**
+     * Writes a model file whose direct-association matrix arrives one entry at a
+     * time, in row order, each entry going straight to its place in the file. The
+     * rows' sizes must be known up front; the other sections are written by
+     * {@link #finish}. Like {@link #write(HIRModel, File)}, it writes under a
+     * temporary name and moves the file into place when it is complete.
+     */
+    static final class MatrixWriter implements Closeable {
+        private final File file;
+        private final Path temp;
+        private final FileChannel channel;
+        private final int[] rowOffsets;
+        private final ValuePrecision precision;
+        private final int entries;
+        private final ByteBuffer columns = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer values = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long columnPos;
+        private long valuePos;
+        private final long scalesPos;
+        private int written;
+        private boolean finished;
+
+        /**
+         * @param file       The destination file.
+         * @param rowOffsets The first entry of each row, followed by the number of entries.
+         * @param precision  The precision in which to store the values.
+         * @throws IOException if the matrix is too large to map, or the file cannot be created.
+         */
+        MatrixWriter(File file, int[] rowOffsets, ValuePrecision precision) throws IOException {
+            final int itemSize = rowOffsets.length - 1;
+            entries = rowOffsets[itemSize];
+            checkSection(file, "corating column", 4L * entries);
+            checkSection(file, "corating value", (long) precision.getBytes() * entries);
+            this.file = file;
+            this.rowOffsets = rowOffsets;
+            this.precision = precision;
+            columnPos = HEADER_SIZE + 8L * itemSize + 4L * (itemSize + 1);
+            valuePos = align(columnPos + 4L * entries);
+            scalesPos = valuePos + align((long) precision.getBytes() * entries);
+            Path target = file.toPath();
+            temp = target.resolveSibling(target.getFileName() + ".tmp");
+            channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                       StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Writes the next entry of the matrix.
+         *
+         * @param column The entry's column.
+         * @param value  The entry's value.
+         * @param scale  The scale of the entry's row, for quantized precisions.
+         * @throws IOException if there is an error writing the file.
+         */
+        void put(int column, double value, double scale) throws IOException {
+            if (columns.remaining() < 4) {
+                columnPos = flushAt(columns, columnPos);
+            }
+            columns.putInt(column);
+            if (values.remaining() < 8) {
+                valuePos = flushAt(values, valuePos);
+            }
+            switch (precision) {
+            case DOUBLE:
+                values.putDouble(value);
+                break;
+            case FLOAT:
+                values.putFloat((float) value);
+                break;
+            case SHORT:
+                values.putShort((short) (scale > 0 ? Math.round(value / scale) : 0));
+                break;
+            default:
+                values.put((byte) (scale > 0 ? Math.round(value / scale) : 0));
+            }
+            written++;
+        }
+
+        /**
+         * Writes the rest of the model and moves the file into place.
+         *
+         * @param index        The index of the model's items.
+         * @param rowScales    The scale of each row, for quantized precisions.
+         * @param ctotals      The number of coratings in each row before normalization.
+         * @param genres       The genre sets of the items.
+         * @param genreWeights The weight of each genre.
+         * @throws IOException if there is an error writing the file.
+         */
+        void finish(ItemIndex index, @Nullable double[] rowScales, double[] ctotals,
+                    ItemGenreBits genres, double[] genreWeights) throws IOException {
+            if (written != entries) {
+                throw new IllegalStateException(String.format("wrote %d of %d matrix entries", written, entries));
+            }
+            flushAt(columns, columnPos);
+            flushAt(values, valuePos);
+            final int itemSize = rowOffsets.length - 1;
+            final int words = genres.getWordCount();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            channel.position(0);
+            buffer.putInt(MAGIC).putInt(VERSION)
+                  .putInt(itemSize).putInt(itemSize)
+                  .putInt(entries).putInt(genreWeights.length)
+                  .putInt(precision.ordinal()).putInt(0);
+            for (int i = 0; i < itemSize; i++) {
+                ensure(channel, buffer, 8);
+                buffer.putLong(index.getId(i));
+            }
+            for (int i = 0; i <= itemSize; i++) {
+                ensure(channel, buffer, 4);
+                buffer.putInt(rowOffsets[i]);
+            }
+            flush(channel, buffer);
+
+            channel.position(scalesPos);
+            if (precision.isQuantized()) {
+                for (int i = 0; i < itemSize; i++) {
+                    ensure(channel, buffer, 8);
+                    buffer.putDouble(rowScales[i]);
+                }
+            }
+            for (int i = 0; i < itemSize; i++) {
+                ensure(channel, buffer, 8);
+                buffer.putDouble(ctotals[i]);
+            }
+            for (double weight : genreWeights) {
+                ensure(channel, buffer, 8);
+                buffer.putDouble(weight);
+            }
+            for (int i = 0; i < itemSize; i++) {
+                for (int w = 0; w < words; w++) {
+                    ensure(channel, buffer, 8);
+                    buffer.putLong(genres.word(i, w));
+                }
+            }
+            flush(channel, buffer);
+            channel.force(true);
+            channel.close();
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+            logger.info("wrote HIR model with {} items and {} coratings to {}", itemSize, entries, file);
+        }
+
+        /**
+         * Closes the file, deleting it unless {@link #finish} completed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                channel.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private long flushAt(ByteBuffer buffer, long pos) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                pos += channel.write(buffer, pos);
+            }
+            buffer.clear();
+            return pos;
+        }
+    }
+
+    /**
+     * Writes the stored values of the direct-association matrix in their precision.
+     */
+    private static void writeValues(FileChannel channel, ByteBuffer buffer, Buffer values,
+                                    ValuePrecision precision) throws IOException {
+        final int entries = values.limit();
+        switch (precision) {
+        case DOUBLE: {
+            DoubleBuffer v = (DoubleBuffer) values;
+            for (int pos = 0; pos < entries; pos++) {
+                ensure(channel, buffer, 8);
+                buffer.putDouble(v.get(pos));
+            }
+            break;
+        }
+        case FLOAT: {
+            FloatBuffer v = (FloatBuffer) values;
+            for (int pos = 0; pos < entries; pos++) {
+                ensure(channel, buffer, 4);
+                buffer.putFloat(v.get(pos));
+            }
+            break;
+        }
+        case SHORT: {
+            ShortBuffer v = (ShortBuffer) values;
+            for (int pos = 0; pos < entries; pos++) {
+                ensure(channel, buffer, 2);
+                buffer.putShort(v.get(pos));
+            }
+            break;
+        }
+        default: {
+            ByteBuffer v = (ByteBuffer) values;
+            for (int pos = 0; pos < entries; pos++) {
+                ensure(channel, buffer, 1);
+                buffer.put(v.get(pos));
+            }
+        }
+        }
+    }
+
+    private static void checkSection(File file, String name, long bytes) throws IOException {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException(String.format("%s: %s section too large to map (%d bytes)", file, name, bytes));
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long align(long pos) {
+        return (pos + 7) & ~7L;
+    }
+
+    private static void ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.inject.Shareable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Holds the {@link HIRModel} currently used for scoring, together with the user
+ * histories it was built from, and replaces both with a {@link Snapshot} rebuilt
+ * in the background. Scorers read the current snapshot once per request, without
+ * locking, and use its model and histories until the request is done; a new
+ * snapshot is installed with a single write, so requests in flight finish on the
+ * old model and histories and later ones see the new ones, never a mix.
+ * <p>
+ * The initial snapshot has no histories of its own: scorers read them from their
+ * injected DAO, so that the holder only depends on the model and can be shared by
+ * every recommender of an engine.
+ * <p>
+ * Installing a snapshot drops the entries of the {@link RecommendationCache}
+ * once both the model and the histories have been replaced. Lists computed with
+ * the old model by requests still in flight may be stored afterwards, but the
+ * cache only serves entries for the current model.
+ * <p>
+ * Besides full rebuilds, a snapshot can take a batch of new ratings with
+ * {@link Snapshot#update(UserEventDAO, Collection, UserEventDAO)}; publishing
+ * the result through {@link #rebuild(Callable)} installs it like any other.
+ */
+
+@Shareable
+public class HIRModelHolder implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = LoggerFactory.getLogger(HIRModelHolder.class);
+
+    private volatile Snapshot current;
+
+    @Nullable
+    private final RecommendationCache cache;
+
+    private transient FutureTask<Snapshot> rebuild;
+
+    /**
+     * @param model The initial model.
+     * @param cache The recommendation cache to clear when the model changes, or {@code null}.
+     */
+    @Inject
+    public HIRModelHolder(HIRModel model, @Nullable RecommendationCache cache) {
+        current = new Snapshot(null, model);
+        this.cache = cache;
+    }
+
+    /**
+     * Creates a holder with no recommendation cache.
+     *
+     * @param model The initial model.
+     */
+    public HIRModelHolder(HIRModel model) {
+        this(model, null);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        rebuild = null;
+    }
+
+    /**
+     * @return The current model and histories.
+     */
+    public Snapshot current() {
+        return current;
+    }
+
+    /**
+     * @return The current model.
+     */
+    public HIRModel get() {
+        return current.getModel();
+    }
+
+    /**
+     * Installs a new model and the histories it was built from for all later requests.
+     *
+     * @param next The new snapshot.
+     */
+    public void swap(Snapshot next) {
+        current = next;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        HIRModel model = next.getModel();
+        HIRMetrics.recordModel(model);
+        logger.info("installed HIR model with {} items and {} coratings",
+                    model.getItemCount(), model.getCoratingMatrix().getEntryCount());
+    }
+
+    /**
+     * Builds a new snapshot on a background thread and installs it once it is
+     * complete. The current one keeps serving while the build runs, and stays
+     * in place if the build fails. Only one rebuild runs at a time: while one
+     * is running, further requests return it instead of starting another.
+     *
+     * @param builder Reloads the histories and builds a new model from them.
+     * @return The rebuild, which completes with the installed snapshot.
+     */
+    public synchronized Future<Snapshot> rebuild(final Callable<Snapshot> builder) {
+        if (rebuild != null && !rebuild.isDone()) {
+            logger.debug("HIR model rebuild already running");
+            return rebuild;
+        }
+        rebuild = new FutureTask<>(new Callable<Snapshot>() {
+            @Override
+            public Snapshot call() throws Exception {
+                long start = System.nanoTime();
+                logger.info("rebuilding HIR model in the background");
+                Snapshot next;
+                try {
+                    next = builder.call();
+                } catch (Exception e) {
+                    logger.error("HIR model rebuild failed, keeping the current model", e);
+                    throw e;
+                }
+                swap(next);
+                logger.info("rebuilt HIR model in {}ms", (System.nanoTime() - start) / 1000000);
+                return next;
+            }
+        });
+        Thread thread = new Thread(rebuild, "hir-model-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+        return rebuild;
+    }
+
+    /**
+     * @return Whether a rebuild is running.
+     */
+    public synchronized boolean isRebuilding() {
+        return rebuild != null && !rebuild.isDone();
+    }
+
+    /**
+     * A model and the user histories it was built from, installed together.
+     * The histories are not serialized; a deserialized snapshot falls back to
+     * the scorer's DAO.
+     */
+    public static final class Snapshot implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Nullable
+        private final transient UserEventDAO dao;
+        private final HIRModel model;
+
+        /**
+         * @param dao   The user histories the model was built from, or {@code null}
+         *              to use the scorer's own DAO.
+         * @param model The model.
+         */
+        public Snapshot(@Nullable UserEventDAO dao, HIRModel model) {
+            this.dao = dao;
+            this.model = model;
+        }
+
+        /**
+         * @return The model.
+         */
+        public HIRModel getModel() {
+            return model;
+        }
+
+        /**
+         * @param injected The DAO of the component asking.
+         * @return The histories the model was built from, or {@code injected} if
+         *         the snapshot has none of its own.
+         */
+        public UserEventDAO getDAO(UserEventDAO injected) {
+            return dao != null ? dao : injected;
+        }
+
+        /**
+         * Applies a batch of new ratings to the model with a {@link HIRModelUpdater}.
+         * The updater reads the histories before the batch from this snapshot, so
+         * they are the ones the model was built from; the new snapshot serves
+         * {@code updated} instead. Build the update inside {@link #rebuild(Callable)},
+         * so that no other snapshot is installed between reading this one and
+         * installing the result.
+         *
+         * @param injected   The DAO of the component asking, used if the snapshot has no
+         *                   histories of its own. It must not include the batch.
+         * @param newRatings The new ratings.
+         * @param updated    The histories including the new ratings.
+         * @return The updated snapshot.
+         * @throws IllegalArgumentException if the model's precision is not {@link ValuePrecision#DOUBLE}.
+         */
+        public Snapshot update(UserEventDAO injected, Collection<? extends Rating> newRatings,
+                               UserEventDAO updated) {
+            HIRModel next = new HIRModelUpdater(getDAO(injected)).update(model, newRatings);
+            return new Snapshot(updated, next);
+        }
+    }
+}
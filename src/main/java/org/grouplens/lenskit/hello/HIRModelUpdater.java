@@ -0,0 +1,259 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.ratings.Rating;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Applies batches of new ratings to an existing {@link HIRModel} without
+ * rebuilding it. Only the corating counts of the affected item pairs change,
+ * and only the touched rows of the direct-association matrix are
+ * re-normalized; the result is a new model, and the old one stays valid.
+ * <p>
+ * Corating counts depend only on which items each user has rated, so a new
+ * rating of an item the user has already rated changes nothing. Ratings of
+ * items outside the model are skipped; they need a full rebuild. The updated
+ * model matches the one a full rebuild over the combined data would produce.
+ * <p>
+ * The counts are recovered from the stored fractions and the row totals, which
+ * is exact only at {@link ValuePrecision#DOUBLE}. Models with a reduced precision
+ * are rejected; update the double model and convert the result instead.
+ * <p>
+ * The DAO must show the histories as they were when the model was built, not
+ * yet including the batch, and must not change while {@link #update} runs.
+ * {@link HIRModelHolder.Snapshot#update} takes care of this by reading them from
+ * the snapshot the model belongs to.
+ */
+
+public class HIRModelUpdater {
+    private static final Logger logger = LoggerFactory.getLogger(HIRModelUpdater.class);
+
+    private final UserEventDAO dao;
+
+    /**
+     * @param dao The user histories <em>before</em> the ratings to be applied.
+     */
+    @Inject
+    public HIRModelUpdater(UserEventDAO dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Applies a batch of new ratings to a model.
+     *
+     * @param model      The model to update.
+     * @param newRatings The new ratings, not yet visible through the DAO.
+     * @return The updated model, or {@code model} if the ratings add no coratings.
+     * @throws IllegalArgumentException if the model's precision is not {@link ValuePrecision#DOUBLE}.
+     */
+    public HIRModel update(HIRModel model, Collection<? extends Rating> newRatings) {
+        Preconditions.checkArgument(model.getCoratingMatrix().getPrecision() == ValuePrecision.DOUBLE,
+                                    "cannot update a model stored at %s precision",
+                                    model.getCoratingMatrix().getPrecision());
+        final ItemIndex index = model.getItemIndex();
+        final int itemSize = model.getItemCount();
+
+        Long2ObjectMap<List<Rating>> byUser = new Long2ObjectOpenHashMap<>();
+        for (Rating r : newRatings) {
+            List<Rating> ratings = byUser.get(r.getUserId());
+            if (ratings == null) {
+                ratings = new ArrayList<>();
+                byUser.put(r.getUserId(), ratings);
+            }
+            ratings.add(r);
+        }
+
+        Int2ObjectMap<Int2IntOpenHashMap> deltas = new Int2ObjectOpenHashMap<>();
+        int skipped = 0;
+        for (Long2ObjectMap.Entry<List<Rating>> entry : byUser.long2ObjectEntrySet()) {
+            IntSet rated = new IntOpenHashSet();
+            IntList items = new IntArrayList();
+            UserHistory<Rating> history = dao.getEventsForUser(entry.getLongKey(), Rating.class);
+            if (history != null) {
+                for (Rating r : history) {
+                    final int item = index.indexOf(r.getItemId());
+                    if (item >= 0 && rated.add(item)) {
+                        items.add(item);
+                    }
+                }
+            }
+            for (Rating r : entry.getValue()) {
+                final int fresh = index.indexOf(r.getItemId());
+                if (fresh < 0) {
+                    skipped++;
+                    continue;
+                }
+                if (rated.add(fresh)) {
+                    for (int k = 0; k < items.size(); k++) {
+                        final int other = items.getInt(k);
+                        delta(deltas, fresh).addTo(other, 1);
+                        delta(deltas, other).addTo(fresh, 1);
+                    }
+                    items.add(fresh);
+                }
+            }
+        }
+        if (skipped > 0) {
+            logger.warn("skipped {} ratings of items outside the model", skipped);
+        }
+        if (deltas.isEmpty()) {
+            return model;
+        }
+
+        logger.info("updating {} of {} corating rows from {} new ratings",
+                    deltas.size(), itemSize, newRatings.size());
+        SparseRowMatrix cmatrix = model.getCoratingMatrix();
+        double[] totals = model.getCoratingTotals().clone();
+
+        int[] rowOffsets = new int[itemSize + 1];
+        for (int i = 0; i < itemSize; i++) {
+            int rowSize = cmatrix.rowEnd(i) - cmatrix.rowStart(i);
+            Int2IntOpenHashMap delta = deltas.get(i);
+            if (delta != null) {
+                for (int column : delta.keySet()) {
+                    if (cmatrix.positionOf(i, column) < 0) {
+                        rowSize++;
+                    }
+                }
+            }
+            rowOffsets[i + 1] = rowOffsets[i] + rowSize;
+        }
+
+        int[] columns = new int[rowOffsets[itemSize]];
+        double[] values = new double[rowOffsets[itemSize]];
+        for (int i = 0; i < itemSize; i++) {
+            Int2IntOpenHashMap delta = deltas.get(i);
+            if (delta == null) {
+                cmatrix.copyEntries(cmatrix.rowStart(i), cmatrix.rowEnd(i), columns, values, rowOffsets[i]);
+            } else {
+                totals[i] = mergeRow(cmatrix, i, totals[i], delta, rowOffsets[i], rowOffsets[i + 1],
+                                     columns, values);
+            }
+        }
+
+        SparseRowMatrix updated = new SparseRowMatrix(itemSize, rowOffsets, columns, values);
+        return new HIRModel(index, updated, totals, model.getGenreBits(), model.getGenreWeights());
+    }
+
+    /**
+     * Finds the ratings of items that users rated in one set of histories but not
+     * in an earlier one. These are the ratings that change the model; a new
+     * rating of an item the user had already rated only changes its value.
+     *
+     * @param before The earlier histories.
+     * @param after  The later histories.
+     * @return The new ratings, or {@code null} if some rating of {@code before} is
+     *         missing from {@code after}, which only a full rebuild can take out.
+     */
+    @Nullable
+    public static List<Rating> addedRatings(ColumnarRatingDAO before, ColumnarRatingDAO after) {
+        LongSet users = after.getUserIds();
+        for (long user : before.getUserIds()) {
+            if (!users.contains(user)) {
+                return null;
+            }
+        }
+        List<Rating> added = new ArrayList<>();
+        for (long user : users) {
+            LongSet rated = new LongOpenHashSet();
+            UserHistory<Rating> old = before.getEventsForUser(user, Rating.class);
+            if (old != null) {
+                for (Rating r : old) {
+                    rated.add(r.getItemId());
+                }
+            }
+            LongSet kept = new LongOpenHashSet();
+            for (Rating r : after.getEventsForUser(user, Rating.class)) {
+                if (rated.contains(r.getItemId())) {
+                    kept.add(r.getItemId());
+                } else {
+                    added.add(r);
+                }
+            }
+            if (kept.size() < rated.size()) {
+                return null;
+            }
+        }
+        return added;
+    }
+
+    private static Int2IntOpenHashMap delta(Int2ObjectMap<Int2IntOpenHashMap> deltas, int row) {
+        Int2IntOpenHashMap delta = deltas.get(row);
+        if (delta == null) {
+            delta = new Int2IntOpenHashMap();
+            deltas.put(row, delta);
+        }
+        return delta;
+    }
+
+    /**
+     * Recovers the counts of a row, adds the new coratings and normalizes it again.
+     *
+     * @return The new number of coratings in the row.
+     */
+    private static double mergeRow(SparseRowMatrix cmatrix, int row, double total, Int2IntOpenHashMap delta,
+                                   int start, int end, int[] columns, double[] values) {
+        Int2IntOpenHashMap counts = new Int2IntOpenHashMap(delta);
+        for (int pos = cmatrix.rowStart(row); pos < cmatrix.rowEnd(row); pos++) {
+            counts.addTo(cmatrix.columnAt(pos), (int) Math.round(cmatrix.valueAt(pos) * total));
+        }
+
+        int pos = start;
+        for (int column : counts.keySet()) {
+            columns[pos++] = column;
+        }
+        IntArrays.quickSort(columns, start, end);
+
+        double newTotal = 0;
+        for (pos = start; pos < end; pos++) {
+            values[pos] = counts.get(columns[pos]);
+            newTotal += values[pos];
+        }
+        for (pos = start; pos < end; pos++) {
+            values[pos] /= newTotal;
+        }
+        return newTotal;
+    }
+}
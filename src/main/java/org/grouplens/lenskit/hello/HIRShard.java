@@ -0,0 +1,131 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.lenskit.api.Result;
+
+import java.util.List;
+
+/**
+ * One shard of a sharded {@link HIRModel}: the scores of a contiguous range of
+ * item indexes. A shard keeps only the columns of the direct-association matrix
+ * for its items, copied from a model that is usually mapped from a
+ * {@link HIRModelFile}; the genre sets and weights that make up the proximity
+ * factors are small and are kept whole, so every shard can compute a user's
+ * genre profile from the full preference vector.
+ * <p>
+ * The scores of a shard's items are exactly those computed by {@link HIRItemScorer},
+ * so merging the top items of every shard gives the unsharded recommendations.
+ */
+
+public class HIRShard {
+    private final HIRModel model;
+    private final int start;
+    private final int end;
+    private final SparseRowMatrix columns;
+
+    /**
+     * Creates a shard of a model.
+     *
+     * @param model      The model.
+     * @param shard      The number of this shard, from 0.
+     * @param shardCount The number of shards.
+     */
+    public HIRShard(HIRModel model, int shard, int shardCount) {
+        Preconditions.checkArgument(shardCount > 0 && shard >= 0 && shard < shardCount,
+                                    "invalid shard %s of %s", shard, shardCount);
+        this.model = model;
+        final int itemSize = model.getItemCount();
+        start = (int) ((long) itemSize * shard / shardCount);
+        end = (int) ((long) itemSize * (shard + 1) / shardCount);
+        columns = model.getCoratingMatrix().sliceColumns(start, end);
+    }
+
+    /**
+     * @return The index of the first item of the shard.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return The index after the last item of the shard.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return The number of corating entries held by the shard.
+     */
+    public int getEntryCount() {
+        return columns.getEntryCount();
+    }
+
+    /**
+     * Recommends the shard's highest-scoring items for a preference vector.
+     * Items in the preference vector are not recommended.
+     *
+     * @param items       The IDs of the items the user rated.
+     * @param preferences The user's preference for each item, summing to 1.
+     * @param count       The number of preferences.
+     * @param n           The number of recommendations.
+     * @param direct      The weight of the direct associations.
+     * @param prox        The weight of the proximity.
+     * @return The shard's top {@code n} items, highest score first.
+     */
+    public List<Result> recommend(long[] items, double[] preferences, int count, int n,
+                                  double direct, double prox) {
+        final ItemIndex index = model.getItemIndex();
+        final ItemGenreBits genres = model.getGenreBits();
+        final int size = end - start;
+        double[] scores = new double[size];
+        double[] profile = new double[model.getGenreCount()];
+        IntOpenHashSet rated = new IntOpenHashSet(count);
+
+        for (int k = 0; k < count; k++) {
+            final int item = index.indexOf(items[k]);
+            if (item < 0) {
+                continue;
+            }
+            rated.add(item);
+            if (preferences[k] != 0) {
+                columns.addRow(item, direct * preferences[k], scores);
+                model.addGenreProfile(item, preferences[k], profile);
+            }
+        }
+
+        final double[] proximities = ScoringBuffers.signatures(model.getSignatureCount());
+        model.signatureProximity(profile, proximities);
+
+        TopNAccumulator accum = new TopNAccumulator(n);
+        for (int j = 0; j < size; j++) {
+            final int item = start + j;
+            if (!rated.contains(item)) {
+                accum.put(index.getId(item), scores[j] + prox * proximities[genres.signatureOf(item)]);
+            }
+        }
+        return accum.finish();
+    }
+}
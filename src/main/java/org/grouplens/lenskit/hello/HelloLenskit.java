@@ -21,29 +21,70 @@
  */
 package org.grouplens.lenskit.hello;
 
+import org.grouplens.grapht.annotation.DefaultDouble;
 import org.lenskit.LenskitRecommenderEngine;
 import org.lenskit.LenskitConfiguration;
 import org.lenskit.config.ConfigHelpers;
 import org.lenskit.data.dao.EventDAO;
 import org.lenskit.data.dao.ItemNameDAO;
 import org.lenskit.data.dao.MapItemNameDAO;
-import org.grouplens.lenskit.data.text.Formats;
-import org.grouplens.lenskit.data.text.TextEventDAO;
+import org.lenskit.data.dao.UserEventDAO;
 import org.lenskit.LenskitRecommender;
 import org.lenskit.api.*;
 import org.lenskit.api.Result;
 import org.lenskit.data.ratings.PreferenceDomain;
+import org.lenskit.data.ratings.Rating;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Demonstration app for LensKit. This application builds an item-item CF model
  * from a CSV file, then generates recommendations for a user.
  *
- * Usage: java org.grouplens.lenskit.hello.HelloLenskit ratings.csv user
+ * Usage: java org.grouplens.lenskit.hello.HelloLenskit [--model FILE] [--ratings-cache FILE]
+ *     [--serve PORT] [--rebuild SECONDS] [--batch FILE] [--threads N] [--shard K/N]
+ *     [--shards PORT,...] [--direct W] [--proximity W] user...
+ *
+ * With {@code --model}, the HIR model is loaded from the given file if it exists,
+ * and otherwise built and written there for the next run.
+ *
+ * The ratings are imported into a binary cache file on first use and mapped from
+ * it afterwards; {@code --ratings-cache} chooses that file. The cache is rebuilt
+ * whenever the ratings file changes.
+ *
+ * With {@code --serve}, the app then keeps the engine and serves recommendations
+ * over HTTP on the given loopback port, answering {@code --threads} requests at once
+ * (twice the processor count by default), until it is interrupted. With
+ * {@code --rebuild}, it checks the ratings file every given number of seconds and,
+ * when the file has changed, rebuilds the model in the background and swaps it in
+ * without interrupting requests. If ratings were only added, and only for items the
+ * model already has, they are applied to the served model instead of rebuilding it.
+ *
+ * With {@code --batch}, the app writes 10 recommendations for every user in the
+ * ratings file to the given CSV file, on {@code --threads} worker threads (one per
+ * processor by default).
+ *
+ * With {@code --shard K/N}, the app instead serves shard {@code K} of {@code N} of
+ * the model written to the {@code --model} file, on the {@code --serve} port. With
+ * {@code --shards}, it recommends for the given users through shard servers
+ * listening on the given loopback ports, without building a model itself.
+ *
+ * {@code --direct} and {@code --proximity} override the scoring weights of
+ * {@code etc/hir.groovy}. The client of a sharded model does not read that
+ * configuration; it scores with these weights, or the parameters' defaults.
  */
 public class HelloLenskit implements Runnable {
     public static void main(String[] args) {
@@ -61,20 +102,78 @@ public class HelloLenskit implements Runnable {
     private File movieFile = new File("data/movies.csv");
     private File genreFile = new File("data/genres.csv");
 
+    private File modelFile = null;
+    private File ratingsCache = new File("build/ratings.bin");
+
+    private int servePort = -1;
+    private int rebuildSeconds = -1;
+    private File batchFile = null;
+    private int threads = -1;
+
+    private int shard = -1;
+    private int shardCount = 0;
+    private List<Integer> shardPorts = null;
+
+    private Double directWeight = null;
+    private Double proximityWeight = null;
+
     private List<Long> users;
 
     public HelloLenskit(String[] args) {
         users = new ArrayList<>(args.length);
-        for (String arg: args) {
-            users.add(Long.parseLong(arg));
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--model") && i + 1 < args.length) {
+                modelFile = new File(args[++i]);
+            } else if (args[i].equals("--ratings-cache") && i + 1 < args.length) {
+                ratingsCache = new File(args[++i]);
+            } else if (args[i].equals("--serve") && i + 1 < args.length) {
+                servePort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--rebuild") && i + 1 < args.length) {
+                rebuildSeconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--batch") && i + 1 < args.length) {
+                batchFile = new File(args[++i]);
+            } else if (args[i].equals("--shard") && i + 1 < args.length) {
+                String[] parts = args[++i].split("/");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("--shard takes K/N");
+                }
+                shard = Integer.parseInt(parts[0]);
+                shardCount = Integer.parseInt(parts[1]);
+            } else if (args[i].equals("--direct") && i + 1 < args.length) {
+                directWeight = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--proximity") && i + 1 < args.length) {
+                proximityWeight = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--shards") && i + 1 < args.length) {
+                shardPorts = new ArrayList<>();
+                for (String port : args[++i].split(",")) {
+                    shardPorts.add(Integer.parseInt(port));
+                }
+            } else {
+                users.add(Long.parseLong(args[i]));
+            }
         }
     }
 
     public void run() {
-        EventDAO dao = TextEventDAO.create(inputFile, Formats.movieLensLatest());
+        if (shardCount > 0) {
+            serveShard();
+            return;
+        }
+
+        ColumnarRatingDAO dao;
         ItemNameDAO names;
         MapItemGenreDAO genres;
 
+        // Parse the data files in parallel chunks, or map the ratings imported by an earlier run
+        ForkJoinPool loadPool = new ForkJoinPool();
+        try {
+            dao = RatingColumnsFile.open(inputFile, 0, ratingsCache, loadPool);
+        } catch (IOException e) {
+            throw new RuntimeException("cannot load ratings", e);
+        }
+
         try {
             names = MapItemNameDAO.fromCSVFile(movieFile, 1);
         } catch (IOException e) {
@@ -82,11 +181,70 @@ public class HelloLenskit implements Runnable {
         }
 
         try {
-            genres = MapItemGenreDAO.fromCSVFile(genreFile);
+            genres = MapItemGenreDAO.fromCSVFile(genreFile, 0, loadPool);
         } catch (IOException g) {
             throw new RuntimeException("cannot load names", g);
+        } finally {
+            loadPool.shutdown();
+        }
+
+        if (shardPorts != null) {
+            recommendThroughShards(dao, names);
+            return;
         }
 
+        LenskitConfiguration config = configure(dao, genres);
+
+        // Use a previously written model instead of building one
+        boolean modelLoaded = false;
+        if (modelFile != null && modelFile.exists()) {
+            try {
+                HIRModel model = HIRModelFile.load(modelFile);
+                HIRMetrics.recordModel(model);
+                config.bind(HIRModel.class).to(model);
+                modelLoaded = true;
+            } catch (IOException e) {
+                throw new RuntimeException("could not load model", e);
+            }
+        }
+
+        LenskitRecommenderEngine engine = LenskitRecommenderEngine.build(config);
+
+        try (LenskitRecommender rec = engine.createRecommender()) {
+            if (modelFile != null && !modelLoaded) {
+                try {
+                    HIRModelFile.write(rec.get(HIRModel.class), modelFile);
+                } catch (IOException e) {
+                    throw new RuntimeException("could not write model", e);
+                }
+            }
+
+            ItemRecommender irec = rec.getItemRecommender();
+            assert irec != null;
+            for (long user : users) {
+                // get 10 recommendation for the user
+                List<Result> recs = irec.recommendWithDetails(user, 10, null, null);
+                System.out.format("Recommendations for user %d:\n", user);
+                for (Result item : recs) {
+                    String name = names.getItemName(item.getId());
+                    System.out.format("\t %s \n", name);
+                }
+            }
+
+            if (batchFile != null) {
+                writeBatch(rec, dao);
+            }
+        }
+
+        if (servePort >= 0) {
+            serve(engine, names);
+            if (rebuildSeconds > 0) {
+                scheduleRebuilds(engine, dao, genres);
+            }
+        }
+    }
+
+    private LenskitConfiguration configure(ColumnarRatingDAO dao, MapItemGenreDAO genres) {
         // Next: load the LensKit algorithm configuration
         LenskitConfiguration config = null;
         try {
@@ -98,23 +256,206 @@ public class HelloLenskit implements Runnable {
 
         config.addComponent(dao);
         config.bind(EventDAO.class).to(dao);
+        config.bind(UserEventDAO.class).to(dao);
         config.bind(MapItemGenreDAO.class).to(genres);
         config.bind(PreferenceDomain.class).to(new PreferenceDomain(0, 1));
+        if (directWeight != null) {
+            config.set(DirectAssociationParameter.class).to(directWeight);
+        }
+        if (proximityWeight != null) {
+            config.set(ProximityParameter.class).to(proximityWeight);
+        }
+        return config;
+    }
 
-        LenskitRecommenderEngine engine = LenskitRecommenderEngine.build(config);
+    /**
+     * Looks up the default of a scoring weight parameter.
+     */
+    private static double defaultWeight(Class<? extends Annotation> parameter) {
+        return parameter.getAnnotation(DefaultDouble.class).value();
+    }
 
-        try (LenskitRecommender rec = engine.createRecommender()) {
-            ItemRecommender irec = rec.getItemRecommender();
-            assert irec != null;
+    private void serveShard() {
+        if (modelFile == null || servePort < 0) {
+            throw new IllegalArgumentException("--shard needs --model and --serve");
+        }
+        final ShardServer server;
+        try {
+            HIRShard part = new HIRShard(HIRModelFile.load(modelFile), shard, shardCount);
+            server = new ShardServer(part, servePort);
+        } catch (IOException e) {
+            throw new RuntimeException("could not start shard", e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        server.start();
+        System.out.format("Serving shard %d of %d on port %d\n", shard, shardCount, server.getPort());
+    }
+
+    private void recommendThroughShards(ColumnarRatingDAO dao, ItemNameDAO names) {
+        List<InetSocketAddress> addresses = new ArrayList<>(shardPorts.size());
+        for (int port : shardPorts) {
+            addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        double direct = directWeight != null ? directWeight : defaultWeight(DirectAssociationParameter.class);
+        double prox = proximityWeight != null ? proximityWeight : defaultWeight(ProximityParameter.class);
+        try (ShardedRecommender rec = new ShardedRecommender(dao, addresses, direct, prox)) {
             for (long user : users) {
-                // get 10 recommendation for the user
-                List<Result> recs = irec.recommendWithDetails(user, 10, null, null);
+                List<Result> recs = rec.recommend(user, 10);
                 System.out.format("Recommendations for user %d:\n", user);
                 for (Result item : recs) {
-                    String name = names.getItemName(item.getId());
-                    System.out.format("\t %s \n", name);
+                    System.out.format("\t %s \n", names.getItemName(item.getId()));
                 }
             }
+        } catch (IOException e) {
+            throw new RuntimeException("could not recommend through shards", e);
+        }
+    }
+
+    private void writeBatch(LenskitRecommender rec, ColumnarRatingDAO dao) {
+        ItemScorer scorer = rec.getItemScorer();
+        if (!(scorer instanceof HIRItemScorer)) {
+            throw new IllegalStateException("batch recommendation requires the HIR item scorer");
+        }
+        BatchRecommendationWriter writer = new BatchRecommendationWriter(
+                (HIRItemScorer) scorer, threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        long start = System.nanoTime();
+        long count;
+        try {
+            count = writer.write(dao.getUserIds(), 10, batchFile);
+        } catch (IOException e) {
+            throw new RuntimeException("could not write batch recommendations", e);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.format("Wrote recommendations for %d users to %s in %.1fs (%d users/sec)\n",
+                          count, batchFile, elapsed / 1.0e9,
+                          BatchRecommendationWriter.usersPerSecond(count, elapsed));
+    }
+
+    private void serve(LenskitRecommenderEngine engine, ItemNameDAO names) {
+        final RecommendationServer server;
+        try {
+            server = new RecommendationServer(engine, names, servePort,
+                                              threads > 0 ? threads : Runtime.getRuntime().availableProcessors() * 2);
+        } catch (IOException e) {
+            throw new RuntimeException("could not start server", e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        server.start();
+        System.out.format("Serving recommendations on port %d\n", server.getPort());
+    }
+
+    /**
+     * Checks the ratings file periodically and rebuilds the served model whenever it changes.
+     *
+     * @param served The ratings the engine was built with.
+     */
+    private void scheduleRebuilds(LenskitRecommenderEngine engine, final ColumnarRatingDAO served,
+                                  final MapItemGenreDAO genres) {
+        final HIRModelHolder holder;
+        try (LenskitRecommender rec = engine.createRecommender()) {
+            holder = rec.get(HIRModelHolder.class);
+        }
+        if (holder == null) {
+            throw new IllegalStateException("model rebuilds require the HIR item scorer");
+        }
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hir-rebuild-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            private long modified = inputFile.lastModified();
+            private long size = inputFile.length();
+
+            @Override
+            public void run() {
+                if (inputFile.lastModified() == modified && inputFile.length() == size) {
+                    return;
+                }
+                modified = inputFile.lastModified();
+                size = inputFile.length();
+                holder.rebuild(new Callable<HIRModelHolder.Snapshot>() {
+                    @Override
+                    public HIRModelHolder.Snapshot call() throws IOException {
+                        return buildModel(holder, served, genres);
+                    }
+                });
+            }
+        }, rebuildSeconds, rebuildSeconds, TimeUnit.SECONDS);
+        System.out.format("Rebuilding the model when %s changes\n", inputFile);
+    }
+
+    /**
+     * Reloads the ratings file and builds a model from it, writing the model to the model
+     * file if there is one. If ratings were only added, and only for items the served
+     * model knows, they are applied to the served model instead of building a new one.
+     *
+     * @param holder The holder of the served model.
+     * @param served The ratings the engine was built with.
+     * @return The new model, with the reloaded ratings to serve histories from.
+     */
+    private HIRModelHolder.Snapshot buildModel(HIRModelHolder holder, ColumnarRatingDAO served,
+                                               MapItemGenreDAO genres) throws IOException {
+        ColumnarRatingDAO dao;
+        ForkJoinPool loadPool = new ForkJoinPool();
+        try {
+            dao = RatingColumnsFile.open(inputFile, 0, ratingsCache, loadPool);
+        } finally {
+            loadPool.shutdown();
+        }
+        HIRModelHolder.Snapshot current = holder.current();
+        UserEventDAO before = current.getDAO(served);
+        HIRModelHolder.Snapshot next = null;
+        if (before instanceof ColumnarRatingDAO) {
+            next = updateModel(current, (ColumnarRatingDAO) before, dao);
+        }
+        if (next == null) {
+            LenskitRecommenderEngine engine = LenskitRecommenderEngine.build(configure(dao, genres));
+            try (LenskitRecommender rec = engine.createRecommender()) {
+                next = new HIRModelHolder.Snapshot(dao, rec.get(HIRModel.class));
+            }
+        }
+        if (modelFile != null) {
+            HIRModelFile.write(next.getModel(), modelFile);
+        }
+        return next;
+    }
+
+    /**
+     * Applies the ratings added since a snapshot was built to its model.
+     *
+     * @return The updated snapshot, or {@code null} if the model needs a full rebuild.
+     */
+    @Nullable
+    private static HIRModelHolder.Snapshot updateModel(HIRModelHolder.Snapshot current, ColumnarRatingDAO before,
+                                                       ColumnarRatingDAO after) {
+        HIRModel model = current.getModel();
+        if (model.getCoratingMatrix().getPrecision() != ValuePrecision.DOUBLE) {
+            return null;
+        }
+        List<Rating> added = HIRModelUpdater.addedRatings(before, after);
+        if (added == null) {
+            return null;
+        }
+        for (Rating r : added) {
+            if (model.getItemIndex().indexOf(r.getItemId()) < 0) {
+                return null;
+            }
         }
+        System.out.format("Applying %d new ratings to the model\n", added.size());
+        return current.update(before, added, after);
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, such as latencies in nanoseconds.
+ * Values below 16 get a bucket each; larger values fall into 8 buckets per power
+ * of two, so a quantile read from the histogram is within 12.5% of the true value.
+ * Recording is a few atomic increments and never allocates.
+ */
+
+final class Histogram {
+
+    private static final int SUB_BUCKETS = 8;
+
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+
+    private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value The value.
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getSum() {
+        return sum.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Estimates a quantile of the recorded values.
+     *
+     * @param q The quantile, between 0 and 1.
+     * @return The upper bound of the bucket holding the quantile, or 0 if nothing was recorded.
+     */
+    long getQuantile(double q) {
+        long n = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            n += counts.get(b);
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBound(b), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the histogram. Values recorded concurrently may be partly lost.
+     */
+    void reset() {
+        for (int b = 0; b < BUCKETS; b++) {
+            counts.set(b, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exp - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exp - 4) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        final int exp = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        final int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        final long width = 1L << (exp - 3);
+        return (SUB_BUCKETS + sub) * width + width - 1;
+    }
+}
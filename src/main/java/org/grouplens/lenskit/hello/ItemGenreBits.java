@@ -0,0 +1,221 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The genre memberships of the items of a model, stored as one bit set per item.
+ * Item {@code i} belongs to genre {@code g} when bit {@code g % 64} of word
+ * {@code g / 64} of its set is on; with up to 64 genres that is a single
+ * {@code long} per item.
+ * <p>
+ * Many items share the same combination of genres, their <em>signature</em>.
+ * Each distinct signature is stored once and items refer to it by number, so
+ * anything that depends only on an item's genres can be computed per signature.
+ */
+
+public class ItemGenreBits implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private final int itemSize;
+
+    private final int genreSize;
+
+    private final int words;
+
+    private final int signatureSize;
+
+    private final int[] signatures;
+
+    private final long[] signatureBits;
+
+    private final int[] signatureOffsets;
+
+    private final int[] signatureItems;
+
+    /**
+     * Creates genre sets over an array of words, grouping the items by signature.
+     *
+     * @param itemSize  The number of items.
+     * @param genreSize The number of genres.
+     * @param bits      The words of each item's set, item after item.
+     */
+    public ItemGenreBits(int itemSize, int genreSize, long[] bits) {
+        this.itemSize = itemSize;
+        this.genreSize = genreSize;
+        words = wordCount(genreSize);
+        Preconditions.checkArgument(bits.length == itemSize * words, "wrong number of genre words");
+
+        signatures = new int[itemSize];
+        Object2IntMap<LongArrayList> ids = new Object2IntOpenHashMap<>();
+        ids.defaultReturnValue(-1);
+        LongArrayList distinct = new LongArrayList();
+        for (int i = 0; i < itemSize; i++) {
+            LongArrayList key = LongArrayList.wrap(Arrays.copyOfRange(bits, i * words, (i + 1) * words));
+            int sig = ids.getInt(key);
+            if (sig < 0) {
+                sig = ids.size();
+                ids.put(key, sig);
+                distinct.addElements(distinct.size(), key.elements(), 0, words);
+            }
+            signatures[i] = sig;
+        }
+        signatureSize = ids.size();
+        signatureBits = distinct.toLongArray();
+
+        // list the items of each signature, in index order
+        signatureOffsets = new int[signatureSize + 1];
+        for (int i = 0; i < itemSize; i++) {
+            signatureOffsets[signatures[i] + 1]++;
+        }
+        for (int s = 0; s < signatureSize; s++) {
+            signatureOffsets[s + 1] += signatureOffsets[s];
+        }
+        signatureItems = new int[itemSize];
+        int[] fill = Arrays.copyOf(signatureOffsets, signatureSize);
+        for (int i = 0; i < itemSize; i++) {
+            signatureItems[fill[signatures[i]]++] = i;
+        }
+    }
+
+    /**
+     * @param genreSize The number of genres.
+     * @return The number of words in each item's genre set.
+     */
+    public static int wordCount(int genreSize) {
+        return (genreSize + 63) >>> 6;
+    }
+
+    public int getItemCount() {
+        return itemSize;
+    }
+
+    public int getGenreSize() {
+        return genreSize;
+    }
+
+    public int getWordCount() {
+        return words;
+    }
+
+    /**
+     * @return The number of distinct genre signatures.
+     */
+    public int getSignatureCount() {
+        return signatureSize;
+    }
+
+    /**
+     * @param item The item index.
+     * @return The number of the item's genre signature.
+     */
+    public int signatureOf(int item) {
+        return signatures[item];
+    }
+
+    /**
+     * @return The signature number of every item, indexed by item; shared, and must not be modified.
+     */
+    int[] getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * @param signature The signature number.
+     * @return The position of the signature's first item in {@link #signatureItem(int)}.
+     */
+    public int signatureStart(int signature) {
+        return signatureOffsets[signature];
+    }
+
+    /**
+     * @param signature The signature number.
+     * @return The position after the signature's last item in {@link #signatureItem(int)}.
+     */
+    public int signatureEnd(int signature) {
+        return signatureOffsets[signature + 1];
+    }
+
+    /**
+     * @param pos A position between the start and end of a signature.
+     * @return The index of the item at that position.
+     */
+    public int signatureItem(int pos) {
+        return signatureItems[pos];
+    }
+
+    /**
+     * @param item The item index.
+     * @param word The word of the item's set.
+     * @return The word.
+     */
+    public long word(int item, int word) {
+        return signatureWord(signatures[item], word);
+    }
+
+    /**
+     * @param signature The signature number.
+     * @param word      The word of the signature's set.
+     * @return The word.
+     */
+    public long signatureWord(int signature, int word) {
+        return signatureBits[signature * words + word];
+    }
+
+    /**
+     * @param item The item index.
+     * @return The number of genres the item belongs to.
+     */
+    public int genreCount(int item) {
+        return signatureGenreCount(signatures[item]);
+    }
+
+    /**
+     * @param signature The signature number.
+     * @return The number of genres in the signature.
+     */
+    public int signatureGenreCount(int signature) {
+        int count = 0;
+        final int base = signature * words;
+        for (int w = 0; w < words; w++) {
+            count += Long.bitCount(signatureBits[base + w]);
+        }
+        return count;
+    }
+
+    /**
+     * @param item  The item index.
+     * @param genre The genre.
+     * @return Whether the item belongs to the genre.
+     */
+    public boolean hasGenre(int item, int genre) {
+        return (word(item, genre >>> 6) & (1L << genre)) != 0;
+    }
+}
@@ -39,6 +39,15 @@ public interface ItemGenreDAO {
     @Nullable
     RealVector getItemGenre(long item);
 
+    /**
+     * Get the genres of an item as a bit set.
+     * @param item The item ID.
+     * @return The words of the item's genre set, bit {@code g % 64} of word
+     *         {@code g / 64} marking genre {@code g}, or {@code null} if the item is unknown.
+     */
+    @Nullable
+    long[] getItemGenreBits(long item);
+
     /**
      * Get the number of genres in the dataset.
      * @return the number of genres in the dataset.
@@ -0,0 +1,106 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongCollection;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An immutable mapping between item IDs and the dense indexes
+ * {@code 0} to {@code size() - 1} used for the rows and columns of the
+ * model matrices. Indexes follow ascending ID order, so the mapping
+ * preserves sorting. Memory is proportional to the number of items,
+ * however sparse the IDs are.
+ */
+
+public class ItemIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long[] ids;
+
+    /**
+     * Whether the IDs are consecutive, so an index can be computed
+     * without searching.
+     */
+    private final boolean contiguous;
+
+    /**
+     * Creates an index over sorted, distinct item IDs.
+     * The array is not copied.
+     */
+    ItemIndex(long[] sortedIds) {
+        ids = sortedIds;
+        contiguous = ids.length == 0 || ids[ids.length - 1] - ids[0] == ids.length - 1;
+    }
+
+    /**
+     * Creates an index over a collection of item IDs, such as {@code ItemDAO.getItemIds()}.
+     *
+     * @param items The item IDs.
+     * @return The index.
+     */
+    public static ItemIndex fromItemIds(LongCollection items) {
+        long[] sorted = items.toLongArray();
+        LongArrays.quickSort(sorted);
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] == sorted[i - 1]) {
+                throw new IllegalArgumentException("duplicate item " + sorted[i]);
+            }
+        }
+        return new ItemIndex(sorted);
+    }
+
+    /**
+     * @return The number of items.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param item The item ID.
+     * @return The index of the item, or -1 if the item is not indexed.
+     */
+    public int indexOf(long item) {
+        if (contiguous) {
+            if (ids.length == 0) {
+                return -1;
+            }
+            long pos = item - ids[0];
+            return pos >= 0 && pos < ids.length ? (int) pos : -1;
+        }
+        int pos = Arrays.binarySearch(ids, item);
+        return pos >= 0 ? pos : -1;
+    }
+
+    /**
+     * @param index The index.
+     * @return The ID of the item at the index.
+     */
+    public long getId(int index) {
+        return ids[index];
+    }
+}
@@ -23,17 +23,16 @@
 package org.grouplens.lenskit.hello;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableMap;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.longs.LongSortedSet;
-import org.apache.commons.lang3.text.StrTokenizer;
-import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.RealVector;
 import org.grouplens.lenskit.collections.LongUtils;
-import org.grouplens.lenskit.util.io.CompressionMode;
 import org.lenskit.data.dao.ItemDAO;
-import org.lenskit.util.io.LineStream;
-import org.lenskit.util.io.ObjectStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,11 +41,16 @@ import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * An item genre DAO backed by a map of item IDs to genres.
+ * An item genre DAO backed by a packed table of per-item genre bit sets.
+ * Item IDs are kept in a sorted array, and the genre set of the item at
+ * position {@code i} occupies {@link ItemGenreBits#wordCount(int)} words of
+ * the bit table starting at {@code i} times that count.
  *
  * @see org.lenskit.data.dao.ItemGenreDAO
  */
@@ -54,13 +58,48 @@ import java.util.NoSuchElementException;
 public class MapItemGenreDAO implements ItemGenreDAO, ItemDAO, Serializable {
     private static final Logger logger = LoggerFactory.getLogger(MapItemGenreDAO.class);
     private static final long serialVersionUID = 1L;
-    private final Map<Long, RealVector> itemGenreMap;
+    private final long[] sortedIds;
+    private final long[] genreBits;
+    private final int genreSize;
+    private final int words;
     private final LongSortedSet itemIds;
-    private static int genreSize = 0;
 
     public MapItemGenreDAO(Map<Long, RealVector> items) {
-        itemGenreMap = ImmutableMap.copyOf(items);
-        itemIds = LongUtils.packedSet(itemGenreMap.keySet());
+        int size = 0;
+        for (RealVector genres : items.values()) {
+            size = Math.max(size, genres.getDimension());
+        }
+        genreSize = size;
+        words = ItemGenreBits.wordCount(genreSize);
+
+        LongArrayList ids = new LongArrayList(items.keySet());
+        sortedIds = ids.toLongArray();
+        LongArrays.quickSort(sortedIds);
+        genreBits = new long[sortedIds.length * words];
+        for (int i = 0; i < sortedIds.length; i++) {
+            RealVector genres = items.get(sortedIds[i]);
+            for (int g = 0; g < genres.getDimension(); g++) {
+                if (genres.getEntry(g) != 0) {
+                    genreBits[i * words + (g >>> 6)] |= 1L << g;
+                }
+            }
+        }
+        itemIds = LongUtils.packedSet(sortedIds);
+    }
+
+    /**
+     * Creates a DAO over packed genre sets. The arrays are not copied.
+     *
+     * @param sortedIds The item IDs, in ascending order.
+     * @param genreBits The words of each item's genre set, in item order.
+     * @param genreSize The number of genres.
+     */
+    MapItemGenreDAO(long[] sortedIds, long[] genreBits, int genreSize) {
+        this.sortedIds = sortedIds;
+        this.genreBits = genreBits;
+        this.genreSize = genreSize;
+        words = ItemGenreBits.wordCount(genreSize);
+        itemIds = LongUtils.packedSet(sortedIds);
     }
 
     @Nullable
@@ -72,7 +111,27 @@ public class MapItemGenreDAO implements ItemGenreDAO, ItemDAO, Serializable {
     @Nullable
     @Override
     public RealVector getItemGenre(long item) {
-        return itemGenreMap.get(item);
+        int pos = Arrays.binarySearch(sortedIds, item);
+        if (pos < 0) {
+            return null;
+        }
+        RealVector genres = new ArrayRealVector(genreSize);
+        for (int g = 0; g < genreSize; g++) {
+            if ((genreBits[pos * words + (g >>> 6)] & (1L << g)) != 0) {
+                genres.setEntry(g, 1);
+            }
+        }
+        return genres;
+    }
+
+    @Nullable
+    @Override
+    public long[] getItemGenreBits(long item) {
+        int pos = Arrays.binarySearch(sortedIds, item);
+        if (pos < 0) {
+            return null;
+        }
+        return Arrays.copyOfRange(genreBits, pos * words, (pos + 1) * words);
     }
 
     @Override
@@ -97,42 +156,108 @@ public class MapItemGenreDAO implements ItemGenreDAO, ItemDAO, Serializable {
      * @throws java.io.IOException if there is an error reading the list of items.
      */
     public static MapItemGenreDAO fromCSVFile(File file, int skipLines) throws IOException {
+        return fromCSVFile(file, skipLines, null);
+    }
+
+    /**
+     * Read an item list DAO from a file of {@code id,title,genres} lines, where the
+     * genres are a {@code |}-separated list of flags and any flag other than
+     * {@code 0} marks membership. The file is mapped into memory and, when large,
+     * parsed in chunks on the pool.
+     * @param file A file of item IDs, one per line.
+     * @param skipLines The number of initial header to skip
+     * @param pool The pool to parse on, or {@code null} to parse on the calling thread.
+     * @return The item list DAO.
+     * @throws java.io.IOException if there is an error reading the list of items.
+     */
+    public static MapItemGenreDAO fromCSVFile(File file, int skipLines, @Nullable ForkJoinPool pool)
+            throws IOException {
         Preconditions.checkArgument(skipLines >= 0, "cannot skip negative lines");
-        LineStream stream = LineStream.openFile(file, CompressionMode.AUTO);
-        try {
-            ObjectStreams.consume(skipLines, stream);
-            ImmutableMap.Builder<Long, RealVector> genres = ImmutableMap.builder();
-            StrTokenizer tok = StrTokenizer.getCSVInstance();
-            for (String line : stream) {
-                tok.reset(line);
-                long item = Long.parseLong(tok.next());
-                String title = tok.nextToken();
-                String genre = tok.nextToken();
-                if (genre != null) {
-                    StrTokenizer gen = new StrTokenizer(genre, "|");
-                    genreSize = gen.size();
-                    double[] genValues = new double[genreSize];
-                    int i = 0;
-                    while (gen.hasNext()) {
-                        double genValue = Double.parseDouble(gen.nextToken());
-                        genValues[i] = genValue;
-                        i++;
+        List<GenreChunk> chunks = MappedCSVReader.parse(file, skipLines, pool, new MappedCSVReader.ChunkParser<GenreChunk>() {
+            @Override
+            public GenreChunk parse(MappedCSVReader.Cursor cursor) throws IOException {
+                GenreChunk chunk = new GenreChunk();
+                while (cursor.nextLine()) {
+                    final int line = cursor.position();
+                    long item = cursor.nextLong();
+                    if (cursor.atLineEnd()) {
+                        throw cursor.error(line, String.format("item %d: not enough columns", item));
+                    }
+                    cursor.skipField();
+                    if (!cursor.atLineEnd()) {
+                        int size = cursor.nextFlags(chunk.bits);
+                        if (chunk.genreSize < 0) {
+                            chunk.genreSize = size;
+                        } else if (size != chunk.genreSize) {
+                            throw cursor.error(line, String.format("item %d: expected %d genres, found %d",
+                                                                item, chunk.genreSize, size));
+                        }
+                        chunk.ids.add(item);
                     }
-                    RealVector genVec = MatrixUtils.createRealVector(genValues);
-                    genres.put(item, genVec);
+                    cursor.endLine();
                 }
+                return chunk;
+            }
+        });
+
+        LongArrayList ids = new LongArrayList();
+        LongArrayList bits = new LongArrayList();
+        int genreSize = -1;
+        for (GenreChunk chunk : chunks) {
+            if (chunk.genreSize >= 0) {
+                if (genreSize >= 0 && chunk.genreSize != genreSize) {
+                    throw new IOException(String.format("%s: expected %d genres, found %d",
+                                                        file, genreSize, chunk.genreSize));
+                }
+                genreSize = chunk.genreSize;
+            }
+            ids.addAll(chunk.ids);
+            bits.addAll(chunk.bits);
+        }
+        return build(file, ids, bits, Math.max(genreSize, 0));
+    }
+
+    /**
+     * The genre sets parsed from one chunk of a file.
+     */
+    private static class GenreChunk {
+        final LongArrayList ids = new LongArrayList();
+        final LongArrayList bits = new LongArrayList();
+        int genreSize = -1;
+    }
+
+    /**
+     * Sorts parsed genre sets by item ID and packs them into a DAO.
+     */
+    static MapItemGenreDAO build(File file, LongArrayList ids, LongArrayList bits, int genreSize)
+            throws IOException {
+        final long[] idArray = ids.toLongArray();
+        final long[] bitArray = bits.toLongArray();
+        final int words = ItemGenreBits.wordCount(genreSize);
+        it.unimi.dsi.fastutil.Arrays.quickSort(0, idArray.length, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return Long.compare(idArray[a], idArray[b]);
+            }
+        }, new Swapper() {
+            @Override
+            public void swap(int a, int b) {
+                long id = idArray[a];
+                idArray[a] = idArray[b];
+                idArray[b] = id;
+                for (int w = 0; w < words; w++) {
+                    long word = bitArray[a * words + w];
+                    bitArray[a * words + w] = bitArray[b * words + w];
+                    bitArray[b * words + w] = word;
+                }
+            }
+        });
+        for (int i = 1; i < idArray.length; i++) {
+            if (idArray[i] == idArray[i - 1]) {
+                throw new IOException(String.format("%s: duplicate item %d", file, idArray[i]));
             }
-            return new MapItemGenreDAO(genres.build());
-        } catch (NoSuchElementException ex) {
-            throw new IOException(String.format("%s:%s: not enough columns",
-                                                file, stream.getLineNumber()),
-                                  ex);
-        } catch (NumberFormatException ex) {
-            throw new IOException(String.format("%s:%s: id not an integer",
-                                                file, stream.getLineNumber()),
-                                  ex);
-        } finally {
-            stream.close();
         }
+        logger.debug("read {} genres for {} items from {}", genreSize, idArray.length, file);
+        return new MapItemGenreDAO(idArray, bitArray, genreSize);
     }
 }
@@ -0,0 +1,459 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Parses comma-separated files by mapping them into memory and reading fields
+ * straight from the bytes, without building a {@code String} per line or field.
+ * A large file is split at line boundaries into chunks that are parsed in
+ * parallel; the results of the chunks are returned in file order.
+ */
+
+final class MappedCSVReader {
+
+    /**
+     * The smallest chunk worth handing to a separate task.
+     */
+    private static final long MIN_CHUNK = 4L << 20;
+
+    /**
+     * The largest chunk, kept well within the limit of a single mapping.
+     */
+    private static final long MAX_CHUNK = 1L << 30;
+
+    /**
+     * Parses the lines of one chunk.
+     *
+     * @param <T> The type of the chunk's result.
+     */
+    interface ChunkParser<T> {
+        /**
+         * @param cursor The cursor over the chunk, positioned at the start of its first line.
+         * @return The parsed result of the chunk.
+         * @throws IOException if a line cannot be parsed.
+         */
+        T parse(Cursor cursor) throws IOException;
+    }
+
+    private MappedCSVReader() {
+    }
+
+    /**
+     * Parses a file.
+     *
+     * @param file      The file to parse.
+     * @param skipLines The number of header lines to skip.
+     * @param pool      The pool to parse chunks on, or {@code null} to parse on the calling thread.
+     * @param parser    The parser for each chunk.
+     * @param <T>       The type of a chunk's result.
+     * @return The results of the chunks, in file order.
+     * @throws IOException if the file cannot be read or parsed.
+     */
+    static <T> List<T> parse(final File file, int skipLines, @Nullable ForkJoinPool pool,
+                             final ChunkParser<T> parser) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long start = 0;
+            for (int i = 0; i < skipLines && start < size; i++) {
+                start = nextLine(channel, start);
+            }
+
+            int parallelism = pool == null ? 1 : pool.getParallelism();
+            long chunks = Math.max(1, Math.min(parallelism * 4L, (size - start) / MIN_CHUNK));
+            chunks = Math.max(chunks, (size - start + MAX_CHUNK - 1) / MAX_CHUNK);
+            final List<Long> bounds = new ArrayList<>();
+            bounds.add(start);
+            for (long c = 1; c < chunks; c++) {
+                long bound = nextLine(channel, start + (size - start) * c / chunks - 1);
+                if (bound > bounds.get(bounds.size() - 1) && bound < size) {
+                    bounds.add(bound);
+                }
+            }
+            bounds.add(size);
+
+            List<Callable<T>> tasks = new ArrayList<>(bounds.size() - 1);
+            for (int c = 0; c + 1 < bounds.size(); c++) {
+                final long from = bounds.get(c);
+                final long to = bounds.get(c + 1);
+                tasks.add(new Callable<T>() {
+                    @Override
+                    public T call() throws IOException {
+                        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+                        return parser.parse(new Cursor(file, from, buffer));
+                    }
+                });
+            }
+
+            List<T> results = new ArrayList<>(tasks.size());
+            if (pool == null || tasks.size() == 1) {
+                for (Callable<T> task : tasks) {
+                    try {
+                        results.add(task.call());
+                    } catch (IOException | RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new IOException(String.format("%s: %s", file, e), e);
+                    }
+                }
+            } else {
+                for (Future<T> result : pool.invokeAll(tasks)) {
+                    results.add(get(file, result));
+                }
+            }
+            return results;
+        }
+    }
+
+    private static <T> T get(File file, Future<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("%s: interrupted while parsing", file), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(String.format("%s: %s", file, cause), cause);
+            }
+        }
+    }
+
+    /**
+     * Finds the start of the line after the one containing a position.
+     */
+    private static long nextLine(FileChannel channel, long pos) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, pos);
+            if (read < 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+    }
+
+    /**
+     * Reads the fields of the lines of a chunk. Fields are separated by commas and
+     * may be quoted; lines end with {@code \n} or {@code \r\n}.
+     */
+    static final class Cursor {
+
+        private static final double[] POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        private final File file;
+        private final long offset;
+        private final ByteBuffer buffer;
+        private final int limit;
+        private int pos;
+
+        Cursor(File file, long offset, ByteBuffer buffer) {
+            this.file = file;
+            this.offset = offset;
+            this.buffer = buffer;
+            limit = buffer.limit();
+        }
+
+        /**
+         * Skips blank lines.
+         *
+         * @return {@code true} if another line remains in the chunk.
+         */
+        boolean nextLine() {
+            while (pos < limit && isLineEnd(buffer.get(pos))) {
+                pos++;
+            }
+            return pos < limit;
+        }
+
+        /**
+         * @return The position of the cursor in the chunk, for {@link #error(int, String)}.
+         */
+        int position() {
+            return pos;
+        }
+
+        /**
+         * @return {@code true} if the current line has no more fields.
+         */
+        boolean atLineEnd() {
+            return pos >= limit || isLineEnd(buffer.get(pos));
+        }
+
+        /**
+         * Skips the rest of the current line, including its terminator.
+         */
+        void endLine() {
+            while (pos < limit && buffer.get(pos) != '\n') {
+                pos++;
+            }
+            if (pos < limit) {
+                pos++;
+            }
+        }
+
+        /**
+         * Reads an integer field.
+         *
+         * @return The value of the field.
+         * @throws IOException if the field is missing or not an integer.
+         */
+        long nextLong() throws IOException {
+            final int start = pos;
+            boolean negative = false;
+            if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+                negative = buffer.get(pos) == '-';
+                pos++;
+            }
+            long value = 0;
+            int digits = 0;
+            while (pos < limit) {
+                final int d = buffer.get(pos) - '0';
+                if (d < 0 || d > 9) {
+                    break;
+                }
+                if (value > (Long.MAX_VALUE - d) / 10) {
+                    throw error(start, "integer out of range");
+                }
+                value = value * 10 + d;
+                digits++;
+                pos++;
+            }
+            if (digits == 0) {
+                throw error(start, "not an integer");
+            }
+            endField(start, "not an integer");
+            return negative ? -value : value;
+        }
+
+        /**
+         * Reads a decimal field. Plain decimals of up to 15 significant digits are
+         * converted directly; anything else falls back to {@link Double#parseDouble(String)}.
+         *
+         * @return The value of the field.
+         * @throws IOException if the field is missing or not a number.
+         */
+        double nextDouble() throws IOException {
+            final int start = pos;
+            boolean negative = false;
+            if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+                negative = buffer.get(pos) == '-';
+                pos++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int scale = 0;
+            boolean point = false;
+            boolean any = false;
+            while (pos < limit) {
+                final byte b = buffer.get(pos);
+                if (b == '.' && !point) {
+                    point = true;
+                } else if (b >= '0' && b <= '9') {
+                    any = true;
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        if (mantissa != 0) {
+                            digits++;
+                        }
+                        if (point) {
+                            scale++;
+                        }
+                    } else {
+                        digits++;
+                    }
+                } else {
+                    break;
+                }
+                pos++;
+            }
+            final boolean simple = any && digits <= 15 && scale < POWERS_OF_TEN.length;
+            if (simple && (atLineEnd() || buffer.get(pos) == ',')) {
+                double value = mantissa / POWERS_OF_TEN[scale];
+                endField(start, "not a number");
+                return negative ? -value : value;
+            }
+            pos = start;
+            String text = nextString();
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                throw error(start, "not a number");
+            }
+        }
+
+        /**
+         * Skips a field, which may be quoted.
+         *
+         * @throws IOException if a quoted field is not terminated.
+         */
+        void skipField() throws IOException {
+            final int start = pos;
+            if (pos < limit && buffer.get(pos) == '"') {
+                skipQuoted(start);
+            } else {
+                while (pos < limit && buffer.get(pos) != ',' && !isLineEnd(buffer.get(pos))) {
+                    pos++;
+                }
+            }
+            endField(start, "unexpected text after quoted field");
+        }
+
+        /**
+         * Reads a field as a string, removing any quotes. This allocates, and is
+         * meant for the rare fields that the other methods cannot read.
+         *
+         * @return The text of the field.
+         * @throws IOException if a quoted field is not terminated.
+         */
+        String nextString() throws IOException {
+            final int start = pos;
+            skipField();
+            int end = pos;
+            if (end > start && buffer.get(end - 1) == ',') {
+                end--;
+            }
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            String text = new String(bytes, StandardCharsets.UTF_8);
+            if (text.startsWith("\"")) {
+                text = text.substring(1, text.length() - 1).replace("\"\"", "\"");
+            }
+            return text;
+        }
+
+        /**
+         * Reads a field of {@code |}-separated flags into a bit set. Any flag other
+         * than {@code 0} marks membership.
+         *
+         * @param bits The list to append the words of the bit set to.
+         * @return The number of flags in the field.
+         */
+        int nextFlags(LongArrayList bits) throws IOException {
+            final int start = pos;
+            int count = 1;
+            int end = pos;
+            while (end < limit && buffer.get(end) != ',' && !isLineEnd(buffer.get(end))) {
+                if (buffer.get(end) == '|') {
+                    count++;
+                }
+                end++;
+            }
+            final int base = bits.size();
+            for (int w = ItemGenreBits.wordCount(count); w > 0; w--) {
+                bits.add(0L);
+            }
+            int g = 0;
+            boolean member = false;
+            for (; pos <= end; pos++) {
+                final byte b = pos < end ? buffer.get(pos) : (byte) '|';
+                if (b == '|') {
+                    if (member) {
+                        bits.set(base + (g >>> 6), bits.getLong(base + (g >>> 6)) | (1L << g));
+                    }
+                    g++;
+                    member = false;
+                } else if (b != '0' && b != '.' && b != ' ' && b != '\t') {
+                    member = true;
+                }
+            }
+            pos = end;
+            endField(start, "bad flags");
+            return count;
+        }
+
+        /**
+         * Creates an exception for a bad field.
+         *
+         * @param fieldStart The position of the field in the chunk.
+         * @param message    The problem with the field.
+         * @return The exception.
+         */
+        IOException error(int fieldStart, String message) {
+            return new IOException(String.format("%s: byte %d: %s", file, offset + fieldStart, message));
+        }
+
+        private void skipQuoted(int start) throws IOException {
+            pos++;
+            while (true) {
+                if (pos >= limit) {
+                    throw error(start, "unterminated quoted field");
+                }
+                if (buffer.get(pos) == '"') {
+                    if (pos + 1 < limit && buffer.get(pos + 1) == '"') {
+                        pos += 2;
+                    } else {
+                        pos++;
+                        return;
+                    }
+                } else {
+                    pos++;
+                }
+            }
+        }
+
+        /**
+         * Checks that a field ended at a delimiter and steps over a comma.
+         */
+        private void endField(int start, String message) throws IOException {
+            if (pos < limit && buffer.get(pos) == ',') {
+                pos++;
+            } else if (!atLineEnd()) {
+                throw error(start, message);
+            }
+        }
+
+        private static boolean isLineEnd(byte b) {
+            return b == '\n' || b == '\r';
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An approximate alternative to {@link DirectAssociationMatrix} for catalogs too
+ * large to count every corating. Each item keeps a MinHash sketch of its raters:
+ * for each of {@code k} hash functions, the smallest hash of any user who rated it.
+ * The fraction of sketch positions on which two items agree estimates the Jaccard
+ * similarity {@code J} of their rater sets, and their corating count is estimated
+ * as {@code J / (1 + J)} times the sum of their rater counts.
+ * <p>
+ * Candidate pairs are found by LSH banding: the sketch is cut into bands of
+ * {@code r} positions, and only items that agree on a whole band are compared.
+ * Agreeing on a minimum means sharing the rater that produced it, so every
+ * candidate pair really is corated; pairs with few common raters may be missed.
+ * Larger sketches give better estimates and find more pairs, at proportionally
+ * more hashing and comparison work.
+ */
+
+public class MinHashCoratingMatrix {
+
+    private final int itemSize;
+    private final int sketchSize;
+    private final int bandRows;
+    private final int bandCount;
+
+    /**
+     * The sketch of each item. Each item has its own array, so the total size is
+     * not limited by the largest array index.
+     */
+    private final int[][] sketches;
+
+    private final int[] raterCounts;
+
+    private final double[] rowTotals;
+
+    /**
+     * Creates a matrix to estimate the coratings of a {@code HIRItemScorer}.
+     *
+     * @param index      The index of the items covered by the model.
+     * @param sketchSize The number of hash values kept per item.
+     * @param bandRows   The number of sketch positions in each LSH band; it must divide {@code sketchSize}.
+     */
+    public MinHashCoratingMatrix(ItemIndex index, int sketchSize, int bandRows) {
+        Preconditions.checkArgument(sketchSize > 0, "sketch size must be positive");
+        Preconditions.checkArgument(bandRows > 0 && sketchSize % bandRows == 0,
+                                    "band rows must divide the sketch size");
+        itemSize = index.size();
+        this.sketchSize = sketchSize;
+        this.bandRows = bandRows;
+        bandCount = sketchSize / bandRows;
+        sketches = new int[itemSize][sketchSize];
+        for (int[] sketch : sketches) {
+            Arrays.fill(sketch, Integer.MAX_VALUE);
+        }
+        raterCounts = new int[itemSize];
+        rowTotals = new double[itemSize];
+    }
+
+    /**
+     * Puts the items rated by a single user into the sketches, restricted to the
+     * rows in {@code [start, end)}. Callers that cover disjoint row ranges may run
+     * concurrently.
+     *
+     * @param user  A number identifying the user; each user must have a different one.
+     * @param items The indexes of the items rated by the user, in ascending order.
+     * @param hashes Scratch space of {@code sketchSize} values.
+     * @param start The first row to update.
+     * @param end   The row after the last row to update.
+     */
+    public void putUserItems(long user, IntList items, int[] hashes, int start, int end) {
+        final int n = items.size();
+        int a = 0;
+        while (a < n && items.getInt(a) < start) {
+            a++;
+        }
+        if (a == n || items.getInt(a) >= end) {
+            return;
+        }
+        final long base = mix(user);
+        for (int j = 0; j < sketchSize; j++) {
+            hashes[j] = (int) (mix(base + j * 0x9E3779B97F4A7C15L) >>> 32);
+        }
+        for (; a < n; a++) {
+            final int item = items.getInt(a);
+            if (item >= end) {
+                break;
+            }
+            raterCounts[item]++;
+            final int[] sketch = sketches[item];
+            for (int j = 0; j < sketchSize; j++) {
+                if (hashes[j] < sketch[j]) {
+                    sketch[j] = hashes[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts the items rated by a single user into the sketches.
+     *
+     * @param user  A number identifying the user; each user must have a different one.
+     * @param items The indexes of the items rated by the user, in ascending order.
+     */
+    public void putUserItems(long user, IntList items) {
+        putUserItems(user, items, new int[sketchSize], 0, itemSize);
+    }
+
+    /**
+     * @return The number of hash values kept per item.
+     */
+    public int getSketchSize() {
+        return sketchSize;
+    }
+
+    /**
+     * @return A matrix of estimated item corating values to be used by
+     *         a {@code HIRItemScorer}.
+     */
+    public SparseRowMatrix buildMatrix() {
+        return buildMatrix(null);
+    }
+
+    /**
+     * Estimates the coratings of all candidate pairs, compresses and normalizes
+     * them, splitting the rows across a fork-join pool. The result does not
+     * depend on the pool.
+     *
+     * @param pool The pool to build on, or {@code null} to build on the calling thread.
+     * @return A matrix of estimated item corating values to be used by
+     *         a {@code HIRItemScorer}.
+     */
+    public SparseRowMatrix buildMatrix(@Nullable ForkJoinPool pool) {
+        // Sort the rated items of each band by their band hash, so that the items
+        // agreeing on a band are adjacent
+        final int[][] bandOrder = new int[bandCount][];
+        final int[][] bandPosition = new int[bandCount][itemSize];
+        final long[][] bandKeys = new long[bandCount][itemSize];
+        int rated = 0;
+        for (int i = 0; i < itemSize; i++) {
+            if (raterCounts[i] > 0) {
+                rated++;
+            }
+        }
+        final int ratedSize = rated;
+        ParallelRows.forEach(pool, bandCount, new ParallelRows.Body() {
+            @Override
+            public void run(int startBand, int endBand) {
+                for (int t = startBand; t < endBand; t++) {
+                    sortBand(t, ratedSize, bandOrder, bandPosition[t], bandKeys[t]);
+                }
+            }
+        });
+
+        final Int2IntOpenHashMap[] workRows = new Int2IntOpenHashMap[itemSize];
+        ParallelRows.forEach(pool, itemSize, new ParallelRows.Body() {
+            @Override
+            public void run(int startRow, int endRow) {
+                IntOpenHashSet candidates = new IntOpenHashSet();
+                for (int i = startRow; i < endRow; i++) {
+                    if (raterCounts[i] == 0) {
+                        continue;
+                    }
+                    candidates.clear();
+                    for (int t = 0; t < bandCount; t++) {
+                        collectBand(i, bandOrder[t], bandPosition[t], bandKeys[t], candidates);
+                    }
+                    Int2IntOpenHashMap row = new Int2IntOpenHashMap(candidates.size());
+                    IntIterator iter = candidates.iterator();
+                    while (iter.hasNext()) {
+                        final int other = iter.nextInt();
+                        final int count = estimateCoratings(i, other);
+                        if (count > 0) {
+                            row.put(other, count);
+                        }
+                    }
+                    workRows[i] = row;
+                }
+            }
+        });
+
+        final int[] rowOffsets = new int[itemSize + 1];
+        for (int i = 0; i < itemSize; i++) {
+            rowOffsets[i + 1] = rowOffsets[i] + (workRows[i] == null ? 0 : workRows[i].size());
+        }
+        final int[] columns = new int[rowOffsets[itemSize]];
+        final double[] values = new double[rowOffsets[itemSize]];
+
+        ParallelRows.forEach(pool, itemSize, new ParallelRows.Body() {
+            @Override
+            public void run(int startRow, int endRow) {
+                for (int i = startRow; i < endRow; i++) {
+                    compressRow(i, workRows[i], rowOffsets[i], rowOffsets[i + 1], columns, values);
+                    workRows[i] = null;
+                }
+            }
+        });
+
+        return new SparseRowMatrix(itemSize, rowOffsets, columns, values);
+    }
+
+    /**
+     * @return The estimated number of coratings in each row before normalization.
+     *         Only meaningful after {@link #buildMatrix()}.
+     */
+    public double[] getRowTotals() {
+        return rowTotals;
+    }
+
+    /**
+     * Estimates the coratings of two items from their sketches.
+     */
+    int estimateCoratings(int a, int b) {
+        final int[] sketchA = sketches[a];
+        final int[] sketchB = sketches[b];
+        int matches = 0;
+        for (int j = 0; j < sketchSize; j++) {
+            if (sketchA[j] == sketchB[j]) {
+                matches++;
+            }
+        }
+        double jaccard = (double) matches / sketchSize;
+        double estimate = jaccard / (1 + jaccard) * (raterCounts[a] + raterCounts[b]);
+        return (int) Math.min(Math.round(estimate), Math.min(raterCounts[a], raterCounts[b]));
+    }
+
+    private void sortBand(int band, int ratedSize, int[][] bandOrder, int[] position, final long[] keys) {
+        int[] order = new int[ratedSize];
+        int k = 0;
+        for (int i = 0; i < itemSize; i++) {
+            if (raterCounts[i] > 0) {
+                long key = band;
+                final int[] sketch = sketches[i];
+                final int offset = band * bandRows;
+                for (int j = 0; j < bandRows; j++) {
+                    key = mix(key * 31 + sketch[offset + j]);
+                }
+                keys[i] = key;
+                order[k++] = i;
+            }
+        }
+        IntArrays.quickSort(order, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                int c = Long.compare(keys[a], keys[b]);
+                return c != 0 ? c : Integer.compare(a, b);
+            }
+        });
+        for (int p = 0; p < ratedSize; p++) {
+            position[order[p]] = p;
+        }
+        bandOrder[band] = order;
+    }
+
+    /**
+     * Adds the items that agree with an item on a band to a candidate set.
+     */
+    private void collectBand(int item, int[] order, int[] position, long[] keys, IntOpenHashSet candidates) {
+        final long key = keys[item];
+        final int pos = position[item];
+        for (int p = pos - 1; p >= 0 && keys[order[p]] == key; p--) {
+            candidates.add(order[p]);
+        }
+        for (int p = pos + 1; p < order.length && keys[order[p]] == key; p++) {
+            candidates.add(order[p]);
+        }
+    }
+
+    /**
+     * Moves one estimated row into the compressed arrays and divides it by its L1 norm.
+     */
+    private void compressRow(int row, @Nullable Int2IntOpenHashMap counts, int start, int end,
+                             int[] columns, double[] values) {
+        if (counts == null) {
+            return;
+        }
+        int pos = start;
+        for (int column : counts.keySet()) {
+            columns[pos++] = column;
+        }
+        IntArrays.quickSort(columns, start, end);
+
+        double total = 0;
+        for (pos = start; pos < end; pos++) {
+            values[pos] = counts.get(columns[pos]);
+            total += values[pos];
+        }
+        if (total != 0) {
+            for (pos = start; pos < end; pos++) {
+                values[pos] /= total;
+            }
+        }
+        rowTotals[row] = total;
+    }
+
+    /**
+     * Compares an approximate corating matrix with the exact coratings of a sample
+     * of its rows.
+     *
+     * @param approx     The approximate matrix.
+     * @param users      The indexes of the items rated by each user, in ascending order.
+     * @param sampleSize The number of rows to compare, spread evenly over the matrix.
+     * @return The error of the sampled rows.
+     */
+    static ErrorReport compareWithExact(SparseRowMatrix approx, Collection<IntList> users, int sampleSize) {
+        final int itemSize = approx.getRowDimension();
+        final int step = Math.max(1, itemSize / Math.max(1, sampleSize));
+        Int2IntOpenHashMap[] exact = new Int2IntOpenHashMap[itemSize];
+        for (int i = 0; i < itemSize; i += step) {
+            exact[i] = new Int2IntOpenHashMap();
+        }
+        for (IntList items : users) {
+            final int n = items.size();
+            for (int a = 0; a < n; a++) {
+                Int2IntOpenHashMap row = exact[items.getInt(a)];
+                if (row == null) {
+                    continue;
+                }
+                for (int b = 0; b < n; b++) {
+                    if (b != a) {
+                        row.addTo(items.getInt(b), 1);
+                    }
+                }
+            }
+        }
+
+        ErrorReport report = new ErrorReport();
+        for (int i = 0; i < itemSize; i += step) {
+            Int2IntOpenHashMap counts = exact[i];
+            double total = 0;
+            for (int c : counts.values()) {
+                total += c;
+            }
+            report.rows++;
+            report.exactPairs += counts.size();
+            report.approximatePairs += approx.rowEnd(i) - approx.rowStart(i);
+
+            // L1 distance between the exact and approximate normalized rows
+            double distance = 0;
+            for (int pos = approx.rowStart(i); pos < approx.rowEnd(i); pos++) {
+                int column = approx.columnAt(pos);
+                double expected = total > 0 ? counts.get(column) / total : 0;
+                if (counts.containsKey(column)) {
+                    report.foundPairs++;
+                }
+                distance += Math.abs(approx.valueAt(pos) - expected);
+            }
+            for (Int2IntOpenHashMap.Entry e : counts.int2IntEntrySet()) {
+                if (approx.getEntry(i, e.getIntKey()) == 0) {
+                    distance += e.getIntValue() / total;
+                }
+            }
+            report.totalDistance += distance;
+            report.maxDistance = Math.max(report.maxDistance, distance);
+        }
+        return report;
+    }
+
+    /**
+     * The error of an approximate corating matrix over a sample of its rows.
+     */
+    static final class ErrorReport {
+        int rows;
+        long exactPairs;
+        long approximatePairs;
+        long foundPairs;
+        double totalDistance;
+        double maxDistance;
+
+        /**
+         * @return The fraction of the exactly corated pairs that the approximate matrix contains.
+         */
+        double getRecall() {
+            return exactPairs == 0 ? 1 : (double) foundPairs / exactPairs;
+        }
+
+        /**
+         * @return The mean L1 distance between exact and approximate normalized rows, from 0 to 2.
+         */
+        double getMeanDistance() {
+            return rows == 0 ? 0 : totalDistance / rows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d sampled rows: %d of %d corated pairs found (recall %.3f), " +
+                                 "%d pairs estimated, row L1 error mean %.4f max %.4f",
+                                 rows, foundPairs, exactPairs, getRecall(), approximatePairs,
+                                 getMeanDistance(), maxDistance);
+        }
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb93fe1a85ec9L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits work over a range of matrix rows into fork-join tasks.
+ * Each task owns a disjoint block of rows, so bodies that only write
+ * to their own rows need no further synchronization.
+ */
+
+final class ParallelRows {
+
+    /**
+     * The smallest block of rows worth handing to a separate task.
+     */
+    private static final int MIN_BLOCK = 64;
+
+    /**
+     * Work applied to a block of rows.
+     */
+    interface Body {
+        /**
+         * @param start The first row of the block.
+         * @param end   The row after the last row of the block.
+         */
+        void run(int start, int end);
+    }
+
+    private ParallelRows() {
+    }
+
+    /**
+     * Applies a body to the rows {@code 0} to {@code rows - 1}.
+     *
+     * @param pool The pool to run on, or {@code null} to run on the calling thread.
+     * @param rows The number of rows.
+     * @param body The work to apply to each block of rows.
+     */
+    static void forEach(@Nullable ForkJoinPool pool, int rows, Body body) {
+        if (pool == null || pool.getParallelism() <= 1 || rows <= MIN_BLOCK) {
+            body.run(0, rows);
+        } else {
+            int block = Math.max(MIN_BLOCK, rows / (pool.getParallelism() * 8));
+            pool.invoke(new RangeAction(body, 0, rows, block));
+        }
+    }
+
+    private static class RangeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Body body;
+        private final int start;
+        private final int end;
+        private final int block;
+
+        RangeAction(Body body, int start, int end, int block) {
+            this.body = body;
+            this.start = start;
+            this.end = end;
+            this.block = block;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= block) {
+                body.run(start, end);
+            } else {
+                int mid = (start + end) >>> 1;
+                invokeAll(new RangeAction(body, start, mid, block),
+                          new RangeAction(body, mid, end, block));
+            }
+        }
+    }
+}
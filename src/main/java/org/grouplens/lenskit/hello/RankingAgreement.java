@@ -0,0 +1,130 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.api.Result;
+import org.lenskit.data.dao.UserEventDAO;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Measures how closely the recommendations of one {@link HIRModel} follow those
+ * of another, such as a reduced-precision model and the double model it was
+ * converted from.
+ */
+
+final class RankingAgreement {
+
+    private RankingAgreement() {
+    }
+
+    /**
+     * Recommends for a sample of users with both models and compares the lists.
+     *
+     * @param reference The model to compare against.
+     * @param candidate The model to compare.
+     * @param dao       The user histories.
+     * @param users     The users to recommend for.
+     * @param n         The number of recommendations per user.
+     * @param direct    The weight of the direct associations.
+     * @param prox      The weight of the proximity.
+     * @return The agreement of the two models' recommendations.
+     */
+    static Report compare(HIRModel reference, HIRModel candidate, UserEventDAO dao,
+                          Collection<Long> users, int n, double direct, double prox) {
+        Long2ObjectMap<List<Result>> expected =
+                new HIRBatchRecommender(dao, reference, direct, prox).recommend(users, n);
+        Long2ObjectMap<List<Result>> actual =
+                new HIRBatchRecommender(dao, candidate, direct, prox).recommend(users, n);
+
+        Report report = new Report(n);
+        for (Long2ObjectMap.Entry<List<Result>> e : expected.long2ObjectEntrySet()) {
+            List<Result> want = e.getValue();
+            List<Result> got = actual.get(e.getLongKey());
+            report.users++;
+
+            LongSet wanted = new LongOpenHashSet(want.size());
+            for (Result r : want) {
+                wanted.add(r.getId());
+            }
+            int overlap = 0;
+            boolean same = want.size() == got.size();
+            for (int i = 0; i < got.size(); i++) {
+                if (wanted.contains(got.get(i).getId())) {
+                    overlap++;
+                }
+                if (same && got.get(i).getId() != want.get(i).getId()) {
+                    same = false;
+                }
+            }
+            for (int i = 0; i < Math.min(want.size(), got.size()); i++) {
+                double error = Math.abs(want.get(i).getScore() - got.get(i).getScore());
+                report.maxScoreError = Math.max(report.maxScoreError, error);
+            }
+            report.overlap += want.isEmpty() ? 1 : (double) overlap / want.size();
+            if (same) {
+                report.identical++;
+            }
+        }
+        return report;
+    }
+
+    /**
+     * The agreement of two models over a sample of users.
+     */
+    static final class Report {
+        final int n;
+        int users;
+        int identical;
+        double overlap;
+        double maxScoreError;
+
+        Report(int n) {
+            this.n = n;
+        }
+
+        /**
+         * @return The mean fraction of the reference top {@code n} that the candidate also recommends.
+         */
+        double getMeanOverlap() {
+            return users == 0 ? 1 : overlap / users;
+        }
+
+        /**
+         * @return The fraction of users whose lists are identical, in the same order.
+         */
+        double getIdenticalFraction() {
+            return users == 0 ? 1 : (double) identical / users;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d sampled users: top-%d overlap %.4f, identical lists %.4f, " +
+                                 "max score error at equal rank %.3g",
+                                 users, n, getMeanOverlap(), getIdenticalFraction(), maxScoreError);
+        }
+    }
+}
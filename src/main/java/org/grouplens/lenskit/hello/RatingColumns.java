@@ -0,0 +1,227 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lenskit.data.ratings.Rating;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A table of ratings stored column by column in primitive arrays: user, item,
+ * rating value and timestamp. Large rating files are read into columns without
+ * creating an object per field, and the rows become {@link Rating} events only
+ * when they are needed.
+ */
+
+public class RatingColumns {
+    private static final Logger logger = LoggerFactory.getLogger(RatingColumns.class);
+
+    private final int size;
+    private final long[] users;
+    private final long[] items;
+    private final double[] values;
+    private final long[] timestamps;
+
+    /**
+     * Creates a table over columns. The arrays are not copied.
+     *
+     * @param size       The number of ratings.
+     * @param users      The user of each rating.
+     * @param items      The item of each rating.
+     * @param values     The value of each rating.
+     * @param timestamps The timestamp of each rating, or -1 if it has none.
+     */
+    public RatingColumns(int size, long[] users, long[] items, double[] values, long[] timestamps) {
+        Preconditions.checkArgument(users.length >= size && items.length >= size
+                                    && values.length >= size && timestamps.length >= size,
+                                    "columns shorter than table");
+        this.size = size;
+        this.users = users;
+        this.items = items;
+        this.values = values;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Reads ratings from a CSV file of {@code user,item,rating[,timestamp]} lines.
+     * The file is mapped into memory, and large files are parsed in chunks on
+     * the pool.
+     *
+     * @param file      The file to read.
+     * @param skipLines The number of header lines to skip.
+     * @param pool      The pool to parse on, or {@code null} to parse on the calling thread.
+     * @return The ratings, in file order.
+     * @throws IOException if the file cannot be read or a line is malformed.
+     */
+    public static RatingColumns fromCSVFile(File file, int skipLines, @Nullable ForkJoinPool pool)
+            throws IOException {
+        Preconditions.checkArgument(skipLines >= 0, "cannot skip negative lines");
+        long start = System.nanoTime();
+        List<Chunk> chunks = MappedCSVReader.parse(file, skipLines, pool, new MappedCSVReader.ChunkParser<Chunk>() {
+            @Override
+            public Chunk parse(MappedCSVReader.Cursor cursor) throws IOException {
+                Chunk chunk = new Chunk();
+                while (cursor.nextLine()) {
+                    chunk.users.add(cursor.nextLong());
+                    chunk.items.add(cursor.nextLong());
+                    chunk.values.add(cursor.nextDouble());
+                    chunk.timestamps.add(cursor.atLineEnd() ? -1 : cursor.nextLong());
+                    cursor.endLine();
+                }
+                return chunk;
+            }
+        });
+
+        long total = 0;
+        for (Chunk chunk : chunks) {
+            total += chunk.users.size();
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException(String.format("%s: too many ratings (%d)", file, total));
+        }
+        final int size = (int) total;
+        long[] users = new long[size];
+        long[] items = new long[size];
+        double[] values = new double[size];
+        long[] timestamps = new long[size];
+        int pos = 0;
+        for (Chunk chunk : chunks) {
+            final int n = chunk.users.size();
+            chunk.users.getElements(0, users, pos, n);
+            chunk.items.getElements(0, items, pos, n);
+            chunk.values.getElements(0, values, pos, n);
+            chunk.timestamps.getElements(0, timestamps, pos, n);
+            pos += n;
+        }
+        logger.info("read {} ratings from {} in {} chunks in {} ms", size, file, chunks.size(),
+                    (System.nanoTime() - start) / 1000000);
+        return new RatingColumns(size, users, items, values, timestamps);
+    }
+
+    /**
+     * @return The number of ratings.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getUser(int i) {
+        return users[i];
+    }
+
+    public long getItem(int i) {
+        return items[i];
+    }
+
+    public double getValue(int i) {
+        return values[i];
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    /**
+     * Sorts the table by user, and each user's ratings by timestamp and item.
+     *
+     * @return A sorted copy of the table.
+     */
+    public RatingColumns sortedByUser() {
+        final long[] users = Arrays.copyOf(this.users, size);
+        final long[] items = Arrays.copyOf(this.items, size);
+        final double[] values = Arrays.copyOf(this.values, size);
+        final long[] timestamps = Arrays.copyOf(this.timestamps, size);
+        it.unimi.dsi.fastutil.Arrays.quickSort(0, size, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                int cmp = Long.compare(users[a], users[b]);
+                if (cmp == 0) {
+                    cmp = Long.compare(timestamps[a], timestamps[b]);
+                }
+                if (cmp == 0) {
+                    cmp = Long.compare(items[a], items[b]);
+                }
+                return cmp;
+            }
+        }, new Swapper() {
+            @Override
+            public void swap(int a, int b) {
+                long user = users[a];
+                users[a] = users[b];
+                users[b] = user;
+                long item = items[a];
+                items[a] = items[b];
+                items[b] = item;
+                double value = values[a];
+                values[a] = values[b];
+                values[b] = value;
+                long timestamp = timestamps[a];
+                timestamps[a] = timestamps[b];
+                timestamps[b] = timestamp;
+            }
+        });
+        return new RatingColumns(size, users, items, values, timestamps);
+    }
+
+    /**
+     * Views the table as rating events. Each event is created when it is read.
+     *
+     * @return The ratings, in table order.
+     */
+    public List<Rating> toRatings() {
+        return new AbstractList<Rating>() {
+            @Override
+            public Rating get(int i) {
+                Preconditions.checkElementIndex(i, size);
+                return Rating.create(users[i], items[i], values[i], timestamps[i]);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * The columns parsed from one chunk of a file.
+     */
+    private static class Chunk {
+        final LongArrayList users = new LongArrayList();
+        final LongArrayList items = new LongArrayList();
+        final DoubleArrayList values = new DoubleArrayList();
+        final LongArrayList timestamps = new LongArrayList();
+    }
+}
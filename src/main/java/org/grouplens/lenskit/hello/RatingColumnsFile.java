@@ -0,0 +1,258 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Caches a CSV rating file in a binary columnar format, so that its text is parsed
+ * once per version of the file.
+ * <p>
+ * The cache holds a header followed by the columns of the ratings sorted by user,
+ * all little-endian:
+ * <ol>
+ *     <li>header: magic, version, user count, rating count, and the size and
+ *     modification time of the source file</li>
+ *     <li>the user IDs, in ascending order</li>
+ *     <li>the first row of each user followed by the rating count, padded to a
+ *     multiple of 8 bytes</li>
+ *     <li>the item of each rating</li>
+ *     <li>the value of each rating</li>
+ *     <li>the timestamp of each rating</li>
+ * </ol>
+ * A cache is used only while the size and modification time of its source match
+ * those recorded in its header; otherwise it is rebuilt from the source.
+ */
+
+public final class RatingColumnsFile {
+    private static final Logger logger = LoggerFactory.getLogger(RatingColumnsFile.class);
+
+    /**
+     * The magic number at the start of every cache file ("HIRR").
+     */
+    static final int MAGIC = 0x48495252;
+
+    /**
+     * The version of the format written by this class.
+     */
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private RatingColumnsFile() {
+    }
+
+    /**
+     * Opens the ratings of a CSV file through its cache, importing the file into
+     * the cache first if the cache is missing or out of date.
+     *
+     * @param source    The CSV file of ratings.
+     * @param skipLines The number of header lines in the source.
+     * @param cache     The cache file.
+     * @param pool      The pool to parse the source on, or {@code null} to parse on
+     *                  the calling thread.
+     * @return A DAO over the cached ratings.
+     * @throws IOException if the source cannot be parsed or the cache cannot be written.
+     */
+    public static ColumnarRatingDAO open(File source, int skipLines, File cache,
+                                         @Nullable ForkJoinPool pool) throws IOException {
+        if (cache.exists()) {
+            ColumnarRatingDAO dao = load(cache, source);
+            if (dao != null) {
+                return dao;
+            }
+            logger.info("rating cache {} is out of date, rebuilding", cache);
+        }
+        final long size = source.length();
+        final long modified = source.lastModified();
+        RatingColumns ratings = RatingColumns.fromCSVFile(source, skipLines, pool).sortedByUser();
+        write(ratings, size, modified, cache);
+        ColumnarRatingDAO dao = load(cache, source);
+        if (dao == null) {
+            throw new IOException(String.format("%s: changed while it was being imported", source));
+        }
+        return dao;
+    }
+
+    /**
+     * Writes ratings to a cache file.
+     *
+     * @param ratings        The ratings, sorted by user.
+     * @param sourceSize     The size of the source file the ratings were read from.
+     * @param sourceModified The modification time of the source file.
+     * @param file           The cache file.
+     * @throws IOException if there is an error writing the file.
+     */
+    static void write(RatingColumns ratings, long sourceSize, long sourceModified, File file)
+            throws IOException {
+        final int size = ratings.size();
+        int userCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || ratings.getUser(i) != ratings.getUser(i - 1)) {
+                userCount++;
+            }
+        }
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("%s: cannot create directory", dir));
+        }
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC).putInt(VERSION)
+                  .putInt(userCount).putInt(size)
+                  .putLong(sourceSize).putLong(sourceModified);
+
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || ratings.getUser(i) != ratings.getUser(i - 1)) {
+                    ensure(channel, buffer, 8);
+                    buffer.putLong(ratings.getUser(i));
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || ratings.getUser(i) != ratings.getUser(i - 1)) {
+                    ensure(channel, buffer, 4);
+                    buffer.putInt(i);
+                }
+            }
+            ensure(channel, buffer, 4);
+            buffer.putInt(size);
+            if ((userCount + 1) % 2 != 0) {
+                ensure(channel, buffer, 4);
+                buffer.putInt(0);
+            }
+            for (int i = 0; i < size; i++) {
+                ensure(channel, buffer, 8);
+                buffer.putLong(ratings.getItem(i));
+            }
+            for (int i = 0; i < size; i++) {
+                ensure(channel, buffer, 8);
+                buffer.putDouble(ratings.getValue(i));
+            }
+            for (int i = 0; i < size; i++) {
+                ensure(channel, buffer, 8);
+                buffer.putLong(ratings.getTimestamp(i));
+            }
+            flush(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("wrote {} ratings by {} users to {}", size, userCount, file);
+    }
+
+    /**
+     * Maps a cache file, checking it against its source.
+     *
+     * @param file   The cache file.
+     * @param source The source file, or {@code null} to skip the check.
+     * @return A DAO over the cached ratings, or {@code null} if the cache is out of
+     *         date or was written by another version of this class.
+     * @throws IOException if the file cannot be read or is truncated.
+     */
+    @Nullable
+    static ColumnarRatingDAO load(File file, @Nullable File source) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    return null;
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+            final int userCount = header.getInt();
+            final int size = header.getInt();
+            final long sourceSize = header.getLong();
+            final long sourceModified = header.getLong();
+            if (source != null && (source.length() != sourceSize || source.lastModified() != sourceModified)) {
+                return null;
+            }
+
+            long usersPos = HEADER_SIZE;
+            long offsetsPos = usersPos + 8L * userCount;
+            long itemsPos = align(offsetsPos + 4L * (userCount + 1));
+            long valuesPos = itemsPos + 8L * size;
+            long timestampsPos = valuesPos + 8L * size;
+            long end = timestampsPos + 8L * size;
+            if (channel.size() < end) {
+                throw new IOException(String.format("%s: truncated rating cache, expected %d bytes", file, end));
+            }
+            if (8L * size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("%s: too many ratings to map (%d)", file, size));
+            }
+
+            long[] userIds = new long[userCount];
+            map(channel, usersPos, 8L * userCount).asLongBuffer().get(userIds);
+
+            logger.info("mapped {} ratings by {} users from {}", size, userCount, file);
+            return new ColumnarRatingDAO(userIds,
+                                         map(channel, offsetsPos, 4L * (userCount + 1)).asIntBuffer(),
+                                         map(channel, itemsPos, 8L * size).asLongBuffer(),
+                                         map(channel, valuesPos, 8L * size).asDoubleBuffer(),
+                                         map(channel, timestampsPos, 8L * size).asLongBuffer());
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long align(long pos) {
+        return (pos + 7) & ~7L;
+    }
+
+    private static void ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.lenskit.api.Result;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.inject.Shareable;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of per-user top-N recommendation lists, shared by all
+ * recommenders built from one engine. Entries are evicted by size and age.
+ * An entry is only served for the model it was computed with and while the
+ * user's history is unchanged, as tracked by {@link #historyVersion(Iterable)}.
+ * Hits and misses are counted in {@link HIRMetrics}.
+ */
+
+@Shareable
+public class RecommendationCache implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    private final int expirySeconds;
+
+    private transient Cache<Long, Entry> cache;
+
+    @Inject
+    public RecommendationCache(@RecommendationCacheSize int size,
+                               @RecommendationCacheExpiry int expiry) {
+        maxSize = size;
+        expirySeconds = expiry;
+        init();
+    }
+
+    private void init() {
+        cache = CacheBuilder.newBuilder()
+                            .maximumSize(maxSize)
+                            .expireAfterWrite(expirySeconds, TimeUnit.SECONDS)
+                            .build();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+    }
+
+    /**
+     * Summarizes a history so that any added, removed or changed event changes the result.
+     *
+     * @param history The user's events.
+     * @return The version of the history.
+     */
+    public static long historyVersion(Iterable<? extends Event> history) {
+        long version = 1;
+        for (Event e : history) {
+            long h = e.getItemId() * 31 + e.getTimestamp();
+            if (e instanceof Rating) {
+                h = h * 31 + Double.doubleToLongBits(((Rating) e).getValue());
+            }
+            version = version * 1000003 + h;
+        }
+        return version;
+    }
+
+    /**
+     * Looks up a user's recommendations.
+     *
+     * @param user    The user.
+     * @param n       The number of recommendations wanted.
+     * @param model   The model currently used for scoring.
+     * @param version The current version of the user's history.
+     * @return The cached recommendations, or {@code null} if there is no usable entry.
+     */
+    @Nullable
+    public List<Result> get(long user, int n, HIRModel model, long version) {
+        Entry entry = cache.getIfPresent(user);
+        if (entry != null && entry.model == model && entry.version == version
+                && (entry.n >= n || entry.results.size() < entry.n)) {
+            HIRMetrics.CACHE_HITS.increment();
+            return entry.results.size() > n ? entry.results.subList(0, n) : entry.results;
+        }
+        HIRMetrics.CACHE_MISSES.increment();
+        return null;
+    }
+
+    /**
+     * Stores a user's recommendations.
+     *
+     * @param user    The user.
+     * @param n       The number of recommendations requested.
+     * @param model   The model the recommendations were computed with.
+     * @param version The version of the user's history they were computed from.
+     * @param results The recommendations.
+     */
+    public void put(long user, int n, HIRModel model, long version, List<Result> results) {
+        if (maxSize > 0) {
+            cache.put(user, new Entry(n, model, version, results));
+        }
+    }
+
+    /**
+     * Drops every entry, e.g. after a new model has been installed.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private static class Entry {
+        final int n;
+        final HIRModel model;
+        final long version;
+        final List<Result> results;
+
+        Entry(int n, HIRModel model, long version, List<Result> results) {
+            this.n = n;
+            this.model = model;
+            this.version = version;
+            this.results = results;
+        }
+    }
+}
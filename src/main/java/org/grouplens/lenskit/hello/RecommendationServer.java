@@ -0,0 +1,272 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.LenskitRecommenderEngine;
+import org.lenskit.api.ItemRecommender;
+import org.lenskit.api.Result;
+import org.lenskit.data.dao.ItemNameDAO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves recommendations over HTTP on the loopback interface from a shared
+ * recommender engine. Requests run concurrently on a fixed pool of threads;
+ * each creates its own {@link LenskitRecommender}, which shares the engine's
+ * pre-built components such as the {@link HIRModel}, so only the light
+ * per-request components are instantiated.
+ * <p>
+ * Endpoints:
+ * <ul>
+ *     <li>{@code GET /recommend?user=ID[&n=N]}: the top {@code N} (default 10) items for
+ *     a user, as JSON</li>
+ *     <li>{@code GET /metrics}: the {@link HIRMetrics} snapshot and the request rate, as JSON</li>
+ * </ul>
+ */
+
+public class RecommendationServer {
+    private static final Logger logger = LoggerFactory.getLogger(RecommendationServer.class);
+
+    private static final int DEFAULT_COUNT = 10;
+
+    private static final int MAX_COUNT = 1000;
+
+    private final LenskitRecommenderEngine engine;
+    @Nullable
+    private final ItemNameDAO names;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long startTime = System.nanoTime();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Creates a server. It does not accept requests until {@link #start()} is called.
+     *
+     * @param engine  The engine to recommend with.
+     * @param names   The item names to include in responses, or {@code null}.
+     * @param port    The port to listen on, or 0 to pick a free one.
+     * @param threads The number of requests to serve at once.
+     * @throws IOException if the port cannot be bound.
+     */
+    public RecommendationServer(LenskitRecommenderEngine engine, @Nullable ItemNameDAO names,
+                                int port, int threads) throws IOException {
+        this.engine = engine;
+        this.names = names;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads * 4);
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "hir-server-" + count.incrementAndGet());
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/recommend", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRecommend(exchange);
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleMetrics(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        logger.info("serving recommendations on http://{}:{}/",
+                    server.getAddress().getHostString(), getPort());
+    }
+
+    /**
+     * Stops the server, waiting up to a few seconds for running requests.
+     */
+    public void stop() {
+        server.stop(2);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleRecommend(HttpExchange exchange) throws IOException {
+        final long start = HIRMetrics.SERVER_REQUEST.start();
+        try {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            long user;
+            int n;
+            try {
+                if (!query.containsKey("user")) {
+                    send(exchange, 400, "{\"error\":\"missing user\"}");
+                    return;
+                }
+                user = Long.parseLong(query.get("user"));
+                n = query.containsKey("n") ? Integer.parseInt(query.get("n")) : DEFAULT_COUNT;
+            } catch (NumberFormatException e) {
+                send(exchange, 400, "{\"error\":\"user and n must be integers\"}");
+                return;
+            }
+            if (n < 0 || n > MAX_COUNT) {
+                send(exchange, 400, "{\"error\":\"n must be between 0 and " + MAX_COUNT + "\"}");
+                return;
+            }
+
+            List<Result> results;
+            try (LenskitRecommender rec = engine.createRecommender()) {
+                ItemRecommender irec = rec.getItemRecommender();
+                if (irec == null) {
+                    send(exchange, 500, "{\"error\":\"no item recommender configured\"}");
+                    return;
+                }
+                results = irec.recommendWithDetails(user, n, null, null);
+            }
+
+            StringBuilder json = new StringBuilder();
+            json.append("{\"user\":").append(user).append(",\"items\":[");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append("{\"id\":").append(r.getId());
+                if (r.hasScore()) {
+                    json.append(",\"score\":").append(jsonNumber(r.getScore()));
+                }
+                String name = names != null ? names.getItemName(r.getId()) : null;
+                if (name != null) {
+                    json.append(",\"name\":");
+                    appendString(json, name);
+                }
+                json.append('}');
+            }
+            json.append("]}");
+            send(exchange, 200, json.toString());
+        } catch (RuntimeException e) {
+            logger.error("error serving " + exchange.getRequestURI(), e);
+            send(exchange, 500, "{\"error\":\"internal error\"}");
+        } finally {
+            requests.incrementAndGet();
+            HIRMetrics.SERVER_REQUEST.stop(start);
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder("{");
+        double seconds = (System.nanoTime() - startTime) / 1.0e9;
+        json.append("\"server.requests\":").append(requests.get());
+        json.append(",\"server.requestsPerSecond\":").append(jsonNumber(requests.get() / seconds));
+        for (Map.Entry<String, Number> e : HIRMetrics.snapshot().entrySet()) {
+            json.append(',');
+            appendString(json, e.getKey());
+            json.append(':').append(jsonNumber(e.getValue().doubleValue()));
+        }
+        json.append('}');
+        send(exchange, 200, json.toString());
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(@Nullable String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(pair.substring(0, eq), pair.substring(eq + 1));
+            }
+        }
+        return params;
+    }
+
+    private static String jsonNumber(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "null";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static void appendString(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '"':
+                json.append("\\\"");
+                break;
+            case '\\':
+                json.append("\\\\");
+                break;
+            default:
+                if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+        }
+        json.append('"');
+    }
+}
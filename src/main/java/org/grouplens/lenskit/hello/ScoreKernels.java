@@ -0,0 +1,152 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+/**
+ * The dense inner loops of scoring, over plain arrays. Each kernel is a simple
+ * counted loop that the JIT compiles without per-element buffer calls; it
+ * unrolls them itself, and vectorizes the ones without indirect indexing, so
+ * they are not unrolled by hand. Values stored in less than double precision
+ * are widened into a scratch array a chunk at a time before they are added.
+ */
+
+final class ScoreKernels {
+
+    /**
+     * The number of values widened at a time.
+     */
+    static final int WIDEN_CHUNK = 512;
+
+    private ScoreKernels() {
+    }
+
+    /**
+     * Adds weighted values to the positions given by their columns:
+     * {@code out[columns[k]] += weight * values[k]} for {@code start <= k < end}.
+     */
+    static void scatterAdd(int[] columns, double[] values, int start, int end,
+                           double weight, double[] out) {
+        for (int pos = start; pos < end; pos++) {
+            out[columns[pos]] += weight * values[pos];
+        }
+    }
+
+    /**
+     * Adds weighted values to the positions given by their columns, with the values
+     * of the entries {@code start <= k < end} at {@code widened[k - start]}.
+     */
+    static void scatterAddWidened(int[] columns, int start, int end, double[] widened,
+                                  double weight, double[] out) {
+        for (int pos = start; pos < end; pos++) {
+            out[columns[pos]] += weight * widened[pos - start];
+        }
+    }
+
+    /**
+     * Converts a range of values to doubles: {@code out[k - start] = values[k]}.
+     * Converting in a separate pass keeps the conversions out of the chain of
+     * dependent additions in the scatter loop.
+     */
+    static void widen(float[] values, int start, int end, double[] out) {
+        for (int pos = start; pos < end; pos++) {
+            out[pos - start] = values[pos];
+        }
+    }
+
+    /**
+     * Converts a range of unsigned 16-bit values to doubles.
+     *
+     * @see #widen(float[], int, int, double[])
+     */
+    static void widenUnsigned(short[] values, int start, int end, double[] out) {
+        for (int pos = start; pos < end; pos++) {
+            out[pos - start] = values[pos] & 0xFFFF;
+        }
+    }
+
+    /**
+     * Converts a range of unsigned 8-bit values to doubles.
+     *
+     * @see #widen(float[], int, int, double[])
+     */
+    static void widenUnsigned(byte[] values, int start, int end, double[] out) {
+        for (int pos = start; pos < end; pos++) {
+            out[pos - start] = values[pos] & 0xFF;
+        }
+    }
+
+    /**
+     * Marks the columns of a range of entries in a bit set, and lists those that
+     * were not marked before.
+     *
+     * @return The new length of {@code touched}.
+     */
+    static int markNew(int[] columns, int start, int end, long[] marks, int[] touched, int count) {
+        for (int pos = start; pos < end; pos++) {
+            final int column = columns[pos];
+            final long bit = 1L << column;
+            if ((marks[column >>> 6] & bit) == 0) {
+                marks[column >>> 6] |= bit;
+                touched[count++] = column;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds looked-up values to every position: {@code out[j] += table[keys[j]]}
+     * for {@code 0 <= j < size}.
+     */
+    static void gatherAdd(int[] keys, double[] table, int size, double[] out) {
+        for (int j = 0; j < size; j++) {
+            out[j] += table[keys[j]];
+        }
+    }
+
+    /**
+     * Adds one array to another: {@code out[j] += a[j]} for {@code 0 <= j < size}.
+     */
+    static void add(double[] a, double[] out, int size) {
+        for (int j = 0; j < size; j++) {
+            out[j] += a[j];
+        }
+    }
+
+    /**
+     * Multiplies two arrays element by element: {@code out[j] = a[j] * b[j]}
+     * for {@code 0 <= j < size}.
+     */
+    static void multiply(double[] a, double[] b, double[] out, int size) {
+        for (int j = 0; j < size; j++) {
+            out[j] = a[j] * b[j];
+        }
+    }
+
+    /**
+     * Scales an array in place: {@code a[j] *= factor} for {@code 0 <= j < size}.
+     */
+    static void scale(double[] a, double factor, int size) {
+        for (int j = 0; j < size; j++) {
+            a[j] *= factor;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread scratch arrays for scoring, reused across requests so that a
+ * steady-state request allocates nothing for its intermediate vectors.
+ * The arrays handed out are cleared and at least as long as requested;
+ * they stay valid until the same thread asks for buffers again.
+ * <p>
+ * The item scores and marks are as long as the catalog, so they are not
+ * cleared up front. A request that used them hands them back with
+ * {@link #release(int[], int)} or {@link #releaseAll(int)}, which clear only
+ * what it wrote; if it fails before doing so, the next {@link #get(int, int)}
+ * clears them in full.
+ */
+
+final class ScoringBuffers {
+
+    private static final ThreadLocal<ScoringBuffers> BUFFERS = new ThreadLocal<ScoringBuffers>() {
+        @Override
+        protected ScoringBuffers initialValue() {
+            return new ScoringBuffers();
+        }
+    };
+
+    private double[] scores = new double[0];
+
+    private double[] profile = new double[0];
+
+    private double[] signatures = new double[0];
+
+    private double[] genres = new double[0];
+
+    private final double[] widened = new double[ScoreKernels.WIDEN_CHUNK];
+
+    private final int[] chunkColumns = new int[ScoreKernels.WIDEN_CHUNK];
+
+    private long[] marks = new long[0];
+
+    private int[] touched = new int[0];
+
+    private int[] order = new int[0];
+
+    /**
+     * Whether the scores or marks may hold values from a request that did not
+     * release them.
+     */
+    private boolean dirty;
+
+    private ScoringBuffers() {
+    }
+
+    /**
+     * Gets the current thread's buffers, cleared and sized for a model.
+     *
+     * @param itemSize  The number of item scores needed.
+     * @param genreSize The number of genre weights needed.
+     * @return The buffers of the current thread.
+     */
+    static ScoringBuffers get(int itemSize, int genreSize) {
+        ScoringBuffers buffers = BUFFERS.get();
+        if (buffers.dirty) {
+            Arrays.fill(buffers.scores, 0);
+            Arrays.fill(buffers.marks, 0);
+        }
+        if (buffers.scores.length < itemSize) {
+            buffers.scores = new double[itemSize];
+        }
+        buffers.profile = clear(buffers.profile, genreSize);
+        final int words = (itemSize + 63) >>> 6;
+        if (buffers.marks.length < words) {
+            buffers.marks = new long[words];
+        }
+        if (buffers.touched.length < itemSize) {
+            buffers.touched = new int[itemSize];
+        }
+        buffers.dirty = true;
+        return buffers;
+    }
+
+    /**
+     * Gets the current thread's signature buffer, cleared and sized. This buffer
+     * is independent of the others, so the model can use it while the caller
+     * holds the scores and profile.
+     *
+     * @param signatureSize The number of signature weights needed.
+     * @return Weights indexed by genre signature.
+     */
+    static double[] signatures(int signatureSize) {
+        ScoringBuffers buffers = BUFFERS.get();
+        buffers.signatures = clear(buffers.signatures, signatureSize);
+        return buffers.signatures;
+    }
+
+    /**
+     * Gets the current thread's genre buffer, cleared and sized. Like the signature
+     * buffer, it is independent of the others.
+     *
+     * @param genreSize The number of genre weights needed.
+     * @return Weights indexed by genre.
+     */
+    static double[] genres(int genreSize) {
+        ScoringBuffers buffers = BUFFERS.get();
+        buffers.genres = clear(buffers.genres, genreSize);
+        return buffers.genres;
+    }
+
+    /**
+     * Gets the current thread's buffer for ordering genre signatures. It is
+     * independent of the others and is not cleared.
+     *
+     * @param signatureSize The number of signatures to order.
+     * @return A buffer of at least {@code signatureSize} ints.
+     */
+    static int[] order(int signatureSize) {
+        ScoringBuffers buffers = BUFFERS.get();
+        if (buffers.order.length < signatureSize) {
+            buffers.order = new int[signatureSize];
+        }
+        return buffers.order;
+    }
+
+    /**
+     * Gets the current thread's buffer for widening stored values to doubles.
+     * It is independent of the others and is not cleared.
+     *
+     * @return A buffer of {@link ScoreKernels#WIDEN_CHUNK} doubles.
+     */
+    static double[] widened() {
+        return BUFFERS.get().widened;
+    }
+
+    /**
+     * Gets the current thread's buffer for the columns of a chunk of entries read
+     * alongside {@link #widened()}. It is not cleared.
+     *
+     * @return A buffer of {@link ScoreKernels#WIDEN_CHUNK} column indexes.
+     */
+    static int[] chunkColumns() {
+        return BUFFERS.get().chunkColumns;
+    }
+
+    private static double[] clear(double[] array, int size) {
+        if (array.length < size) {
+            return new double[size];
+        }
+        Arrays.fill(array, 0, size, 0);
+        return array;
+    }
+
+    /**
+     * Clears the scores and marks of the items a request touched, readying the
+     * buffers for the next request.
+     *
+     * @param items The touched item indexes.
+     * @param count The number of touched items.
+     */
+    void release(int[] items, int count) {
+        for (int k = 0; k < count; k++) {
+            final int item = items[k];
+            scores[item] = 0;
+            marks[item >>> 6] = 0;
+        }
+        dirty = false;
+    }
+
+    /**
+     * Clears the scores of a request that wrote to every item and left the marks
+     * alone.
+     *
+     * @param itemSize The number of item scores the request used.
+     */
+    void releaseAll(int itemSize) {
+        Arrays.fill(scores, 0, itemSize, 0);
+        dirty = false;
+    }
+
+    /**
+     * @return Scores indexed by item; all zero until the request writes them.
+     */
+    double[] scores() {
+        return scores;
+    }
+
+    /**
+     * @return Weights indexed by genre.
+     */
+    double[] profile() {
+        return profile;
+    }
+
+    /**
+     * @return A bit set over items, one bit per item index; all clear until the
+     *         request marks items.
+     */
+    long[] marks() {
+        return marks;
+    }
+
+    /**
+     * @return A list of item indexes, long enough to hold every item; not cleared.
+     */
+    int[] touched() {
+        return touched;
+    }
+}
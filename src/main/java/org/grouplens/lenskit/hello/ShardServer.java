@@ -0,0 +1,201 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.lenskit.api.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the recommendations of one {@link HIRShard} over a socket on the loopback
+ * interface, for a {@link ShardedRecommender}. Each connection is served by its own
+ * thread and carries any number of requests, one after another.
+ * <p>
+ * A request is the number of recommendations, the direct-association and proximity
+ * weights, the number of preferences and then each preference as an item ID and
+ * value. The response is the number of results followed by each result's item ID
+ * and score, or -1 followed by an error message. A request for more results than
+ * the shard has items gets all of them.
+ */
+
+public class ShardServer {
+    private static final Logger logger = LoggerFactory.getLogger(ShardServer.class);
+
+    /**
+     * The largest preference vector a request may carry.
+     */
+    static final int MAX_PREFERENCES = 1 << 24;
+
+    private final HIRShard shard;
+    private final ServerSocket socket;
+    private final ExecutorService executor;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a server and binds its socket.
+     *
+     * @param shard The shard to serve.
+     * @param port  The port to listen on, or 0 to pick a free one.
+     * @throws IOException if the port cannot be bound.
+     */
+    public ShardServer(HIRShard shard, int port) throws IOException {
+        this.shard = shard;
+        socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "hir-shard-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    public void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+        logger.info("serving items {} to {} on port {}", shard.getStart(), shard.getEnd(), getPort());
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    public void stop() {
+        running = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.warn("error closing shard socket", e);
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (running) {
+            final Socket client;
+            try {
+                client = socket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("error accepting shard connection", e);
+                }
+                return;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(client);
+                }
+            });
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket s = client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            long[] items = new long[16];
+            double[] preferences = new double[16];
+            while (true) {
+                final int n;
+                try {
+                    n = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                final double direct = in.readDouble();
+                final double prox = in.readDouble();
+                final int count = in.readInt();
+                if (count < 0 || count > MAX_PREFERENCES || n < 0) {
+                    throw new IOException(String.format("%s: malformed request", s.getRemoteSocketAddress()));
+                }
+                // A shard has no more than its own items to return
+                final int wanted = Math.min(n, shard.getEnd() - shard.getStart());
+                if (count > items.length) {
+                    items = new long[count];
+                    preferences = new double[count];
+                }
+                for (int k = 0; k < count; k++) {
+                    items[k] = in.readLong();
+                    preferences[k] = in.readDouble();
+                }
+
+                List<Result> results;
+                try {
+                    results = shard.recommend(items, preferences, count, wanted, direct, prox);
+                } catch (RuntimeException e) {
+                    logger.error("error scoring shard request", e);
+                    out.writeInt(-1);
+                    out.writeUTF(e.toString());
+                    out.flush();
+                    continue;
+                }
+                out.writeInt(results.size());
+                for (Result r : results) {
+                    out.writeLong(r.getId());
+                    out.writeDouble(r.getScore());
+                }
+                out.flush();
+            }
+        } catch (SocketException e) {
+            if (running) {
+                logger.debug("shard connection closed", e);
+            }
+        } catch (IOException e) {
+            logger.error("error serving shard connection", e);
+        }
+    }
+}
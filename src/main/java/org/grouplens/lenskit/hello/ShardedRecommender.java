@@ -0,0 +1,227 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Preconditions;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.lenskit.api.Result;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.history.History;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.results.Results;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Recommends through a set of {@link ShardServer}s, each of which scores a range
+ * of the catalog. A user's preference vector is sent to every shard at once, and
+ * the shards' top items are merged; the result equals the recommendations of
+ * {@link HIRItemScorer#recommend} over the whole model.
+ * <p>
+ * Each shard is reached over one connection, so concurrent requests take turns
+ * at each shard.
+ */
+
+public class ShardedRecommender implements Closeable {
+    private final UserEventDAO dao;
+    private final double directAssociation;
+    private final double proximity;
+    private final List<ShardConnection> shards;
+    private final ExecutorService executor;
+
+    /**
+     * Connects to the shards.
+     *
+     * @param dao       The user histories.
+     * @param addresses The addresses of the shard servers, which together must cover the model.
+     * @param direct    The weight of the direct associations.
+     * @param prox      The weight of the proximity.
+     * @throws IOException if a shard cannot be reached.
+     */
+    public ShardedRecommender(UserEventDAO dao, List<InetSocketAddress> addresses,
+                              double direct, double prox) throws IOException {
+        Preconditions.checkArgument(!addresses.isEmpty(), "no shards");
+        this.dao = dao;
+        directAssociation = direct;
+        proximity = prox;
+        shards = new ArrayList<>(addresses.size());
+        try {
+            for (InetSocketAddress address : addresses) {
+                shards.add(new ShardConnection(address));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        executor = Executors.newFixedThreadPool(addresses.size());
+    }
+
+    /**
+     * Recommends items for a user.
+     *
+     * @param user The user.
+     * @param n    The number of recommendations.
+     * @return The top {@code n} items the user has not rated, highest score first.
+     * @throws IOException if a shard fails.
+     */
+    public List<Result> recommend(long user, final int n) throws IOException {
+        UserHistory<Rating> history = dao.getEventsForUser(user, Rating.class);
+        if (history == null) {
+            history = History.forUser(user);
+        }
+        SparseVector ratings = RatingVectorUserHistorySummarizer.makeRatingVector(history);
+        double total = ratings.sum();
+        final double scale = total != 0 ? 1 / total : 1;
+        final int count = ratings.size();
+        final long[] items = new long[count];
+        final double[] preferences = new double[count];
+        int k = 0;
+        for (VectorEntry e : ratings.fast()) {
+            items[k] = e.getKey();
+            preferences[k] = e.getValue() * scale;
+            k++;
+        }
+
+        List<Future<List<Result>>> replies = new ArrayList<>(shards.size());
+        for (final ShardConnection shard : shards) {
+            replies.add(executor.submit(new Callable<List<Result>>() {
+                @Override
+                public List<Result> call() throws IOException {
+                    return shard.recommend(items, preferences, count, n, directAssociation, proximity);
+                }
+            }));
+        }
+
+        List<List<Result>> parts = new ArrayList<>(replies.size());
+        int available = 0;
+        for (Future<List<Result>> reply : replies) {
+            List<Result> part = await(reply);
+            parts.add(part);
+            available += part.size();
+        }
+        TopNAccumulator accum = new TopNAccumulator(Math.min(n, available));
+        for (List<Result> part : parts) {
+            for (Result r : part) {
+                accum.put(r.getId(), r.getScore());
+            }
+        }
+        return accum.finish();
+    }
+
+    /**
+     * Closes the connections to the shards.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (ShardConnection shard : shards) {
+            shard.close();
+        }
+    }
+
+    private static List<Result> await(Future<List<Result>> reply) throws IOException {
+        try {
+            return reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a shard", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("error querying shard", cause);
+        }
+    }
+
+    /**
+     * A connection to one shard server.
+     */
+    private static class ShardConnection {
+        private final InetSocketAddress address;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        ShardConnection(InetSocketAddress address) throws IOException {
+            this.address = address;
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        synchronized List<Result> recommend(long[] items, double[] preferences, int count, int n,
+                                            double direct, double prox) throws IOException {
+            out.writeInt(n);
+            out.writeDouble(direct);
+            out.writeDouble(prox);
+            out.writeInt(count);
+            for (int k = 0; k < count; k++) {
+                out.writeLong(items[k]);
+                out.writeDouble(preferences[k]);
+            }
+            out.flush();
+
+            final int size = in.readInt();
+            if (size < 0) {
+                throw new IOException(String.format("%s: %s", address, in.readUTF()));
+            }
+            List<Result> results = new ArrayList<>(size);
+            for (int k = 0; k < size; k++) {
+                final long item = in.readLong();
+                results.add(Results.create(item, in.readDouble()));
+            }
+            return results;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more to do with a failed connection
+            }
+        }
+    }
+}
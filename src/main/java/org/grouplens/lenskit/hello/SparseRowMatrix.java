@@ -0,0 +1,740 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * An immutable matrix in compressed sparse row form.
+ * The entries of row {@code i} are stored at positions
+ * {@code rowStart(i)} (inclusive) to {@code rowEnd(i)} (exclusive)
+ * of the column index and value buffers, with columns in ascending order.
+ * The buffers either wrap heap arrays or map a {@link HIRModelFile}.
+ * <p>
+ * Values are stored in a {@link ValuePrecision}: as doubles, as floats, or
+ * quantized to 16 or 8 bits with a scale per row. Quantized values are
+ * converted back as they are read.
+ * <p>
+ * Rows of a matrix over heap arrays are added with the array loops of
+ * {@link ScoreKernels}; rows of a mapped matrix are read through its buffers.
+ */
+
+public class SparseRowMatrix implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private final int columnSize;
+
+    private final ValuePrecision precision;
+
+    private transient IntBuffer rowOffsets;
+
+    private transient IntBuffer columnIndices;
+
+    /**
+     * The values, in a buffer of the type matching {@link #precision}.
+     */
+    private transient Buffer values;
+
+    /**
+     * The scale of each row of quantized values, or {@code null}.
+     */
+    private transient DoubleBuffer rowScales;
+
+    /**
+     * The arrays backing the column and value buffers, or {@code null} if they are not
+     * both whole heap arrays.
+     */
+    private transient int[] columnArray;
+
+    private transient Object valueArray;
+
+    /**
+     * Creates a matrix from its compressed sparse row arrays.
+     * The arrays are not copied.
+     *
+     * @param columnSize    The number of columns.
+     * @param rowOffsets    The start offset of each row, followed by the number of entries.
+     * @param columnIndices The column of each entry, ascending within each row.
+     * @param values        The value of each entry.
+     */
+
+    public SparseRowMatrix(int columnSize, int[] rowOffsets, int[] columnIndices, double[] values) {
+        this(columnSize, IntBuffer.wrap(rowOffsets), IntBuffer.wrap(columnIndices), DoubleBuffer.wrap(values));
+    }
+
+    /**
+     * Creates a matrix over compressed sparse row buffers, such as views of a mapped file.
+     * The buffers are not copied; their contents are read with absolute gets.
+     */
+
+    SparseRowMatrix(int columnSize, IntBuffer rowOffsets, IntBuffer columnIndices, DoubleBuffer values) {
+        this(columnSize, rowOffsets, columnIndices, values, null, ValuePrecision.DOUBLE);
+    }
+
+    /**
+     * Creates a matrix over compressed sparse row buffers with values of any precision.
+     *
+     * @param values    A {@link DoubleBuffer}, {@link FloatBuffer}, {@link ShortBuffer} or
+     *                  {@link ByteBuffer} of values, matching {@code precision}.
+     * @param rowScales The scale of each row, if the precision is quantized.
+     * @param precision The precision of the values.
+     */
+
+    SparseRowMatrix(int columnSize, IntBuffer rowOffsets, IntBuffer columnIndices,
+                    Buffer values, @Nullable DoubleBuffer rowScales, ValuePrecision precision) {
+        Preconditions.checkArgument(rowOffsets.limit() > 0, "missing row offsets");
+        Preconditions.checkArgument(columnIndices.limit() == values.limit(),
+                                    "column and value arrays differ in length");
+        Preconditions.checkArgument(rowOffsets.get(rowOffsets.limit() - 1) == values.limit(),
+                                    "row offsets do not match the number of entries");
+        Preconditions.checkArgument(values instanceof DoubleBuffer ? precision == ValuePrecision.DOUBLE
+                                    : values instanceof FloatBuffer ? precision == ValuePrecision.FLOAT
+                                    : values instanceof ShortBuffer ? precision == ValuePrecision.SHORT
+                                    : values instanceof ByteBuffer && precision == ValuePrecision.BYTE,
+                                    "value buffer does not match precision %s", precision);
+        Preconditions.checkArgument(!precision.isQuantized()
+                                    || rowScales != null && rowScales.limit() == rowOffsets.limit() - 1,
+                                    "quantized values need a scale for each row");
+        this.columnSize = columnSize;
+        this.rowOffsets = rowOffsets;
+        this.columnIndices = columnIndices;
+        this.values = values;
+        this.rowScales = precision.isQuantized() ? rowScales : null;
+        this.precision = precision;
+        initArrays();
+    }
+
+    private void initArrays() {
+        if (columnIndices.hasArray() && columnIndices.arrayOffset() == 0
+                && values.hasArray() && values.arrayOffset() == 0) {
+            columnArray = columnIndices.array();
+            valueArray = values.array();
+        } else {
+            columnArray = null;
+            valueArray = null;
+        }
+    }
+
+    public int getRowDimension() {
+        return rowOffsets.limit() - 1;
+    }
+
+    public int getColumnDimension() {
+        return columnSize;
+    }
+
+    /**
+     * @return The number of stored entries.
+     */
+    public int getEntryCount() {
+        return values.limit();
+    }
+
+    /**
+     * @return The precision of the stored values.
+     */
+    public ValuePrecision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @param row The row index.
+     * @return The position of the first entry of the row.
+     */
+    public int rowStart(int row) {
+        return rowOffsets.get(row);
+    }
+
+    /**
+     * @param row The row index.
+     * @return The position after the last entry of the row.
+     */
+    public int rowEnd(int row) {
+        return rowOffsets.get(row + 1);
+    }
+
+    /**
+     * @param pos The position of an entry.
+     * @return The column of the entry.
+     */
+    public int columnAt(int pos) {
+        return columnIndices.get(pos);
+    }
+
+    /**
+     * Reads a single value. Quantized values need their row's scale, which takes a
+     * search of the row offsets; use {@link #addRow(int, double, double[])} to read
+     * whole rows quickly.
+     *
+     * @param pos The position of an entry.
+     * @return The value of the entry.
+     */
+    public double valueAt(int pos) {
+        if (precision.isQuantized()) {
+            return valueAt(rowOf(pos), pos);
+        } else if (precision == ValuePrecision.FLOAT) {
+            return ((FloatBuffer) values).get(pos);
+        } else {
+            return ((DoubleBuffer) values).get(pos);
+        }
+    }
+
+    /**
+     * Reads the value of an entry whose row is known.
+     */
+    private double valueAt(int row, int pos) {
+        switch (precision) {
+        case DOUBLE:
+            return ((DoubleBuffer) values).get(pos);
+        case FLOAT:
+            return ((FloatBuffer) values).get(pos);
+        case SHORT:
+            return rowScales.get(row) * (((ShortBuffer) values).get(pos) & 0xFFFF);
+        default:
+            return rowScales.get(row) * (((ByteBuffer) values).get(pos) & 0xFF);
+        }
+    }
+
+    /**
+     * Finds the row holding an entry.
+     */
+    private int rowOf(int pos) {
+        int lo = 0;
+        int hi = getRowDimension() - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (rowOffsets.get(mid) <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Looks up a single entry.
+     *
+     * @param row    The row index.
+     * @param column The column index.
+     * @return The value stored at the given cell, or 0 if it is not stored.
+     */
+    public double getEntry(int row, int column) {
+        final int pos = positionOf(row, column);
+        return pos < 0 ? 0 : valueAt(row, pos);
+    }
+
+    /**
+     * Finds where a cell is stored. Unlike {@link #getEntry(int, int)}, this tells
+     * a stored zero, which a quantized row can hold, from a missing entry.
+     *
+     * @param row    The row index.
+     * @param column The column index.
+     * @return The position of the entry, or -1 if it is not stored.
+     */
+    public int positionOf(int row, int column) {
+        int lo = rowOffsets.get(row);
+        int hi = rowOffsets.get(row + 1) - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int midColumn = columnIndices.get(mid);
+            if (midColumn < column) {
+                lo = mid + 1;
+            } else if (midColumn > column) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a weighted row to a dense array, indexed by column.
+     *
+     * @param row    The row index.
+     * @param weight The weight of the row.
+     * @param out    The array to add to.
+     */
+    public void addRow(int row, double weight, double[] out) {
+        if (columnArray == null) {
+            addRowBuffered(row, weight, out);
+            return;
+        }
+        final int start = rowOffsets.get(row);
+        final int end = rowOffsets.get(row + 1);
+        if (precision == ValuePrecision.DOUBLE) {
+            ScoreKernels.scatterAdd(columnArray, (double[]) valueArray, start, end, weight, out);
+            return;
+        }
+        final double w = precision.isQuantized() ? weight * rowScales.get(row) : weight;
+        final double[] widened = ScoringBuffers.widened();
+        for (int chunk = start; chunk < end; chunk += ScoreKernels.WIDEN_CHUNK) {
+            final int chunkEnd = Math.min(end, chunk + ScoreKernels.WIDEN_CHUNK);
+            widenChunk(chunk, chunkEnd, widened);
+            ScoreKernels.scatterAddWidened(columnArray, chunk, chunkEnd, widened, w, out);
+        }
+    }
+
+    /**
+     * Adds a row to several dense arrays, each with its own weight. The row is read
+     * from memory once: it is taken a chunk at a time, and each chunk is added to
+     * every array while it is in cache. Each array receives the same sums as from
+     * {@link #addRow(int, double, double[])}.
+     *
+     * @param row     The row index.
+     * @param weights The weight of the row for each array.
+     * @param outs    The arrays to add to, indexed by column.
+     * @param count   The number of arrays.
+     */
+    public void addRow(int row, double[] weights, double[][] outs, int count) {
+        final int start = rowOffsets.get(row);
+        final int end = rowOffsets.get(row + 1);
+        if (columnArray != null && precision == ValuePrecision.DOUBLE) {
+            final double[] v = (double[]) valueArray;
+            for (int chunk = start; chunk < end; chunk += ScoreKernels.WIDEN_CHUNK) {
+                final int chunkEnd = Math.min(end, chunk + ScoreKernels.WIDEN_CHUNK);
+                for (int k = 0; k < count; k++) {
+                    ScoreKernels.scatterAdd(columnArray, v, chunk, chunkEnd, weights[k], outs[k]);
+                }
+            }
+            return;
+        }
+        final double scale = precision.isQuantized() ? rowScales.get(row) : 1;
+        final double[] widened = ScoringBuffers.widened();
+        final int[] columns = columnArray != null ? columnArray : ScoringBuffers.chunkColumns();
+        for (int chunk = start; chunk < end; chunk += ScoreKernels.WIDEN_CHUNK) {
+            final int chunkEnd = Math.min(end, chunk + ScoreKernels.WIDEN_CHUNK);
+            final int offset;
+            if (columnArray != null) {
+                widenChunk(chunk, chunkEnd, widened);
+                offset = chunk;
+            } else {
+                readChunk(chunk, chunkEnd, columns, widened);
+                offset = 0;
+            }
+            for (int k = 0; k < count; k++) {
+                final double w = precision.isQuantized() ? weights[k] * scale : weights[k];
+                ScoreKernels.scatterAddWidened(columns, offset, offset + chunkEnd - chunk, widened, w, outs[k]);
+            }
+        }
+    }
+
+    /**
+     * Converts the stored values of a range of entries of an array-backed matrix to
+     * doubles, without the row scale.
+     */
+    private void widenChunk(int start, int end, double[] widened) {
+        switch (precision) {
+        case DOUBLE:
+            System.arraycopy((double[]) valueArray, start, widened, 0, end - start);
+            break;
+        case FLOAT:
+            ScoreKernels.widen((float[]) valueArray, start, end, widened);
+            break;
+        case SHORT:
+            ScoreKernels.widenUnsigned((short[]) valueArray, start, end, widened);
+            break;
+        default:
+            ScoreKernels.widenUnsigned((byte[]) valueArray, start, end, widened);
+        }
+    }
+
+    /**
+     * Reads the columns and stored values of a range of entries through the buffers,
+     * into arrays starting at 0. Values are converted to doubles without the row scale.
+     */
+    private void readChunk(int start, int end, int[] columns, double[] widened) {
+        IntBuffer columnView = columnIndices.duplicate();
+        columnView.position(start);
+        columnView.get(columns, 0, end - start);
+        switch (precision) {
+        case DOUBLE: {
+            DoubleBuffer valueView = ((DoubleBuffer) values).duplicate();
+            valueView.position(start);
+            valueView.get(widened, 0, end - start);
+            break;
+        }
+        case FLOAT: {
+            final FloatBuffer v = (FloatBuffer) values;
+            for (int pos = start; pos < end; pos++) {
+                widened[pos - start] = v.get(pos);
+            }
+            break;
+        }
+        case SHORT: {
+            final ShortBuffer v = (ShortBuffer) values;
+            for (int pos = start; pos < end; pos++) {
+                widened[pos - start] = v.get(pos) & 0xFFFF;
+            }
+            break;
+        }
+        default: {
+            final ByteBuffer v = (ByteBuffer) values;
+            for (int pos = start; pos < end; pos++) {
+                widened[pos - start] = v.get(pos) & 0xFF;
+            }
+        }
+        }
+    }
+
+    /**
+     * Marks the columns of a row in a bit set, and lists those that were not marked before.
+     *
+     * @param row     The row index.
+     * @param marks   A bit set over columns, updated by this call.
+     * @param touched The list of columns marked so far.
+     * @param count   The length of the list.
+     * @return The new length of the list.
+     */
+    int markRow(int row, long[] marks, int[] touched, int count) {
+        final int start = rowOffsets.get(row);
+        final int end = rowOffsets.get(row + 1);
+        if (columnArray != null) {
+            return ScoreKernels.markNew(columnArray, start, end, marks, touched, count);
+        }
+        for (int pos = start; pos < end; pos++) {
+            final int column = columnIndices.get(pos);
+            if ((marks[column >>> 6] & (1L << column)) == 0) {
+                marks[column >>> 6] |= 1L << column;
+                touched[count++] = column;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds a weighted row to a dense array, reading the entries through the buffers.
+     * This is how rows of mapped matrices are added.
+     *
+     * @see #addRow(int, double, double[])
+     */
+    void addRowBuffered(int row, double weight, double[] out) {
+        final int start = rowOffsets.get(row);
+        final int end = rowOffsets.get(row + 1);
+        switch (precision) {
+        case DOUBLE: {
+            final DoubleBuffer v = (DoubleBuffer) values;
+            for (int pos = start; pos < end; pos++) {
+                out[columnIndices.get(pos)] += weight * v.get(pos);
+            }
+            break;
+        }
+        case FLOAT: {
+            final FloatBuffer v = (FloatBuffer) values;
+            for (int pos = start; pos < end; pos++) {
+                out[columnIndices.get(pos)] += weight * v.get(pos);
+            }
+            break;
+        }
+        case SHORT: {
+            final ShortBuffer v = (ShortBuffer) values;
+            final double w = weight * rowScales.get(row);
+            for (int pos = start; pos < end; pos++) {
+                out[columnIndices.get(pos)] += w * (v.get(pos) & 0xFFFF);
+            }
+            break;
+        }
+        default: {
+            final ByteBuffer v = (ByteBuffer) values;
+            final double w = weight * rowScales.get(row);
+            for (int pos = start; pos < end; pos++) {
+                out[columnIndices.get(pos)] += w * (v.get(pos) & 0xFF);
+            }
+        }
+        }
+    }
+
+    /**
+     * Copies a range of entries into arrays.
+     *
+     * @param start         The position of the first entry to copy.
+     * @param end           The position after the last entry to copy.
+     * @param columnsOut    The array receiving the column indices.
+     * @param valuesOut     The array receiving the values.
+     * @param offset        The position in the arrays to copy to.
+     */
+    public void copyEntries(int start, int end, int[] columnsOut, double[] valuesOut, int offset) {
+        IntBuffer columnView = columnIndices.duplicate();
+        columnView.position(start);
+        columnView.get(columnsOut, offset, end - start);
+        if (precision == ValuePrecision.DOUBLE) {
+            DoubleBuffer valueView = ((DoubleBuffer) values).duplicate();
+            valueView.position(start);
+            valueView.get(valuesOut, offset, end - start);
+        } else if (start < end) {
+            int row = rowOf(start);
+            for (int pos = start; pos < end; pos++) {
+                while (pos >= rowOffsets.get(row + 1)) {
+                    row++;
+                }
+                valuesOut[offset + pos - start] = valueAt(row, pos);
+            }
+        }
+    }
+
+    /**
+     * Converts the matrix to another precision. Quantized rows are scaled so their
+     * largest value is stored exactly; values must be non-negative.
+     *
+     * @param target The precision of the new matrix.
+     * @return A matrix with the same entries in the given precision, or this matrix
+     *         if it already has that precision.
+     */
+    public SparseRowMatrix withPrecision(ValuePrecision target) {
+        if (target == precision) {
+            return this;
+        }
+        final int rows = getRowDimension();
+        final int entries = getEntryCount();
+        double[] exact = new double[entries];
+        copyEntries(0, entries, new int[entries], exact, 0);
+
+        Buffer converted;
+        DoubleBuffer scales = null;
+        switch (target) {
+        case DOUBLE:
+            converted = DoubleBuffer.wrap(exact);
+            break;
+        case FLOAT: {
+            float[] floats = new float[entries];
+            for (int pos = 0; pos < entries; pos++) {
+                floats[pos] = (float) exact[pos];
+            }
+            converted = FloatBuffer.wrap(floats);
+            break;
+        }
+        default: {
+            final int levels = target.getMaxLevel();
+            double[] scaleArray = new double[rows];
+            short[] shorts = target == ValuePrecision.SHORT ? new short[entries] : null;
+            byte[] bytes = target == ValuePrecision.BYTE ? new byte[entries] : null;
+            for (int row = 0; row < rows; row++) {
+                final int start = rowOffsets.get(row);
+                final int end = rowOffsets.get(row + 1);
+                double max = 0;
+                for (int pos = start; pos < end; pos++) {
+                    Preconditions.checkArgument(exact[pos] >= 0, "cannot quantize negative value in row %s", row);
+                    max = Math.max(max, exact[pos]);
+                }
+                final double scale = max / levels;
+                scaleArray[row] = scale;
+                for (int pos = start; pos < end; pos++) {
+                    final int level = scale > 0 ? (int) Math.round(exact[pos] / scale) : 0;
+                    if (shorts != null) {
+                        shorts[pos] = (short) level;
+                    } else {
+                        bytes[pos] = (byte) level;
+                    }
+                }
+            }
+            converted = shorts != null ? ShortBuffer.wrap(shorts) : ByteBuffer.wrap(bytes);
+            scales = DoubleBuffer.wrap(scaleArray);
+        }
+        }
+        return new SparseRowMatrix(columnSize, rowOffsets, columnIndices, converted, scales, target);
+    }
+
+    /**
+     * Copies the columns {@code [start, end)} of the matrix, renumbered from 0.
+     * The values are copied as stored, with the same row scales, so the slice
+     * holds exactly the values of this matrix.
+     *
+     * @param start The first column to copy.
+     * @param end   The column after the last column to copy.
+     * @return A matrix with all rows of this one and {@code end - start} columns.
+     */
+    public SparseRowMatrix sliceColumns(int start, int end) {
+        Preconditions.checkArgument(0 <= start && start <= end && end <= columnSize,
+                                    "invalid column range [%s, %s)", start, end);
+        final int rows = getRowDimension();
+        int[] first = new int[rows];
+        int[] offsets = new int[rows + 1];
+        for (int i = 0; i < rows; i++) {
+            int lo = rowOffsets.get(i);
+            int hi = rowOffsets.get(i + 1);
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (columnIndices.get(mid) < start) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            first[i] = lo;
+            int pos = lo;
+            while (pos < rowOffsets.get(i + 1) && columnIndices.get(pos) < end) {
+                pos++;
+            }
+            offsets[i + 1] = offsets[i] + pos - lo;
+        }
+
+        final int entries = offsets[rows];
+        int[] columns = new int[entries];
+        double[] doubles = precision == ValuePrecision.DOUBLE ? new double[entries] : null;
+        float[] floats = precision == ValuePrecision.FLOAT ? new float[entries] : null;
+        short[] shorts = precision == ValuePrecision.SHORT ? new short[entries] : null;
+        byte[] bytes = precision == ValuePrecision.BYTE ? new byte[entries] : null;
+        for (int i = 0; i < rows; i++) {
+            int out = offsets[i];
+            for (int pos = first[i]; out < offsets[i + 1]; pos++, out++) {
+                columns[out] = columnIndices.get(pos) - start;
+                switch (precision) {
+                case DOUBLE:
+                    doubles[out] = ((DoubleBuffer) values).get(pos);
+                    break;
+                case FLOAT:
+                    floats[out] = ((FloatBuffer) values).get(pos);
+                    break;
+                case SHORT:
+                    shorts[out] = ((ShortBuffer) values).get(pos);
+                    break;
+                default:
+                    bytes[out] = ((ByteBuffer) values).get(pos);
+                }
+            }
+        }
+
+        Buffer sliced;
+        DoubleBuffer scales = null;
+        switch (precision) {
+        case DOUBLE:
+            sliced = DoubleBuffer.wrap(doubles);
+            break;
+        case FLOAT:
+            sliced = FloatBuffer.wrap(floats);
+            break;
+        case SHORT:
+            sliced = ShortBuffer.wrap(shorts);
+            break;
+        default:
+            sliced = ByteBuffer.wrap(bytes);
+        }
+        if (rowScales != null) {
+            double[] scaleArray = new double[rows];
+            rowScales.duplicate().get(scaleArray);
+            scales = DoubleBuffer.wrap(scaleArray);
+        }
+        return new SparseRowMatrix(end - start, IntBuffer.wrap(offsets), IntBuffer.wrap(columns),
+                                   sliced, scales, precision);
+    }
+
+    /**
+     * @return A read-only view of the stored values, in the buffer type matching the precision.
+     */
+    Buffer getValueBuffer() {
+        switch (precision) {
+        case DOUBLE:
+            return ((DoubleBuffer) values).asReadOnlyBuffer();
+        case FLOAT:
+            return ((FloatBuffer) values).asReadOnlyBuffer();
+        case SHORT:
+            return ((ShortBuffer) values).asReadOnlyBuffer();
+        default:
+            return ((ByteBuffer) values).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * @param row The row index.
+     * @return The scale of a row of quantized values, or 1 if the values are not quantized.
+     */
+    double rowScale(int row) {
+        return rowScales == null ? 1 : rowScales.get(row);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        int[] offsetArray = new int[rowOffsets.limit()];
+        rowOffsets.duplicate().get(offsetArray);
+        int[] columnArray = new int[columnIndices.limit()];
+        columnIndices.duplicate().get(columnArray);
+        out.writeObject(offsetArray);
+        out.writeObject(columnArray);
+        switch (precision) {
+        case DOUBLE: {
+            double[] valueArray = new double[values.limit()];
+            ((DoubleBuffer) values).duplicate().get(valueArray);
+            out.writeObject(valueArray);
+            break;
+        }
+        case FLOAT: {
+            float[] valueArray = new float[values.limit()];
+            ((FloatBuffer) values).duplicate().get(valueArray);
+            out.writeObject(valueArray);
+            break;
+        }
+        case SHORT: {
+            short[] valueArray = new short[values.limit()];
+            ((ShortBuffer) values).duplicate().get(valueArray);
+            out.writeObject(valueArray);
+            break;
+        }
+        default: {
+            byte[] valueArray = new byte[values.limit()];
+            ((ByteBuffer) values).duplicate().get(valueArray);
+            out.writeObject(valueArray);
+        }
+        }
+        if (rowScales != null) {
+            double[] scaleArray = new double[rowScales.limit()];
+            rowScales.duplicate().get(scaleArray);
+            out.writeObject(scaleArray);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        rowOffsets = IntBuffer.wrap((int[]) in.readObject());
+        columnIndices = IntBuffer.wrap((int[]) in.readObject());
+        switch (precision) {
+        case DOUBLE:
+            values = DoubleBuffer.wrap((double[]) in.readObject());
+            break;
+        case FLOAT:
+            values = FloatBuffer.wrap((float[]) in.readObject());
+            break;
+        case SHORT:
+            values = ShortBuffer.wrap((short[]) in.readObject());
+            break;
+        default:
+            values = ByteBuffer.wrap((byte[]) in.readObject());
+        }
+        if (precision.isQuantized()) {
+            rowScales = DoubleBuffer.wrap((double[]) in.readObject());
+        }
+        initArrays();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Preconditions;
+import org.lenskit.api.Result;
+import org.lenskit.results.Results;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the {@code n} highest scored items seen so far in a bounded
+ * min-heap over primitive arrays. Among equal scores the item offered
+ * first is kept and listed first: the heap orders items by score and then
+ * by the sequence number of the offer.
+ */
+
+public class TopNAccumulator {
+
+    private final int capacity;
+
+    private final long[] ids;
+
+    private final double[] scores;
+
+    private final long[] offers;
+
+    private int size;
+
+    private long offerCount;
+
+    /**
+     * @param n The number of items to keep.
+     */
+    public TopNAccumulator(int n) {
+        Preconditions.checkArgument(n >= 0, "negative result size");
+        capacity = n;
+        ids = new long[n];
+        scores = new double[n];
+        offers = new long[n];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return The score an item must beat to enter a full accumulator,
+     *         negative infinity if the accumulator is not full yet, or
+     *         positive infinity if it holds no items at all.
+     */
+    public double threshold() {
+        if (size < capacity) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return capacity == 0 ? Double.POSITIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Offers an item to the accumulator.
+     *
+     * @param id    The item id.
+     * @param score The item score.
+     */
+    public void put(long id, double score) {
+        final long offer = offerCount++;
+        if (size < capacity) {
+            ids[size] = id;
+            scores[size] = score;
+            offers[size] = offer;
+            siftUp(size++);
+        } else if (capacity > 0 && score > scores[0]) {
+            // an equal score does not displace the root, which was offered earlier
+            ids[0] = id;
+            scores[0] = score;
+            offers[0] = offer;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Removes the accumulated items, leaving the accumulator empty.
+     *
+     * @return The accumulated items, highest score first.
+     */
+    public List<Result> finish() {
+        Result[] results = new Result[size];
+        while (size > 0) {
+            results[size - 1] = Results.create(ids[0], scores[0]);
+            size--;
+            ids[0] = ids[size];
+            scores[0] = scores[size];
+            offers[0] = offers[size];
+            siftDown(0);
+        }
+        offerCount = 0;
+        List<Result> list = new ArrayList<>(results.length);
+        Collections.addAll(list, results);
+        return list;
+    }
+
+    private void siftUp(int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!worse(pos, parent)) {
+                break;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos) {
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(child + 1, child)) {
+                child++;
+            }
+            if (!worse(child, pos)) {
+                break;
+            }
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    /**
+     * Whether the item at one heap position ranks below the item at another: it
+     * has a lower score, or the same score and a later offer.
+     */
+    private boolean worse(int a, int b) {
+        return scores[a] < scores[b] || scores[a] == scores[b] && offers[a] > offers[b];
+    }
+
+    private void swap(int a, int b) {
+        long id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+        long offer = offers[a];
+        offers[a] = offers[b];
+        offers[b] = offer;
+    }
+}
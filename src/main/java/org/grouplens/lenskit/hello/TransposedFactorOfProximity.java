@@ -21,16 +21,23 @@
 
 package org.grouplens.lenskit.hello;
 
-import it.unimi.dsi.fastutil.longs.LongIterator;
-import it.unimi.dsi.fastutil.longs.LongSet;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
-import org.lenskit.data.dao.ItemDAO;
+import javax.annotation.Nullable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The second factor of the matrix that contains the inter-item
+ * relationships that derive from their categorization: the transposed
+ * genre indicators, with each genre row divided by the number of items
+ * in the genre. The indicators are the item genre sets already held by
+ * the first factor, so only the per-genre normalization is computed here.
+ */
 
 public class TransposedFactorOfProximity {
 
-    private RealMatrix transposed;
+    private final ItemIndex index;
+
+    private final ItemGenreDAO gDao;
 
     private int genreSize;
 
@@ -38,50 +45,73 @@ public class TransposedFactorOfProximity {
      * Creates a matrix to process genre data and generate the second factor of the proximity
      * matrix needed for a {@code HIRItemScorer}.
      *
-     * @param dao    The DataAccessObject interfacing with the item data for the model
+     * @param index  The index of the items covered by the model
      * @param gDao   The genreDataAccessObject interfacing with the genre data for the model
      *
      */
 
-    public TransposedFactorOfProximity(ItemDAO dao,
+    public TransposedFactorOfProximity(ItemIndex index,
                                        ItemGenreDAO gDao) {
-
-        LongSet items = dao.getItemIds();
+        this.index = index;
+        this.gDao = gDao;
         genreSize = gDao.getGenreSize();
-        int itemSize = items.size();
+    }
 
-        double[][] dataTransposed = new double[genreSize][itemSize];
+    /**
+     * @return The weight of each genre row of the transposed factor,
+     * that is one over the number of items in the genre,
+     * to be used by a {@code HIRItemScorer}.
+     */
 
-        transposed = MatrixUtils.createRealMatrix(dataTransposed);
 
-        int i = 0;
-        LongIterator iter = items.iterator();
-        while (iter.hasNext()) {
-            long item = iter.nextLong();
-            transposed.setColumnVector(i, gDao.getItemGenre(item));
-            i++;
-        }
+    public double[] ColumnStochastic() {
+        return ColumnStochastic(null);
     }
 
     /**
-     * @return A matrix containing the row stochastic values of the matrix
-     * that contains the information about the item categorization transposed,
-     * to be used by a {@code HIRItemScorer}.
+     * Counts the items of each genre, splitting the items across a fork-join pool.
+     *
+     * @param pool The pool to run on, or {@code null} to run on the calling thread.
+     * @return The genre weights; identical to the ones built by {@link #ColumnStochastic()}.
      */
 
+    public double[] ColumnStochastic(@Nullable ForkJoinPool pool) {
+
+        final AtomicIntegerArray counts = new AtomicIntegerArray(genreSize);
+
+        ParallelRows.forEach(pool, index.size(), new ParallelRows.Body() {
+            @Override
+            public void run(int start, int end) {
+                int[] local = new int[genreSize];
+                for (int i = start; i < end; i++) {
+                    long[] genres = gDao.getItemGenreBits(index.getId(i));
+                    if (genres == null) {
+                        continue;
+                    }
+                    for (int w = 0; w < genres.length; w++) {
+                        long word = genres[w];
+                        while (word != 0) {
+                            local[(w << 6) + Long.numberOfTrailingZeros(word)]++;
+                            word &= word - 1;
+                        }
+                    }
+                }
+                for (int g = 0; g < genreSize; g++) {
+                    if (local[g] != 0) {
+                        counts.addAndGet(g, local[g]);
+                    }
+                }
+            }
+        });
 
-    public RealMatrix ColumnStochastic() {
-
-        for (int i = 0; i < genreSize; i++) {
-            RealVector forIter = transposed.getRowVector(i);
-            double sum = forIter.getL1Norm();
-            if (sum!=0){
-                forIter.mapDivideToSelf(sum);
-                transposed.setRowVector(i, forIter);
+        double[] weights = new double[genreSize];
+        for (int g = 0; g < genreSize; g++) {
+            int sum = counts.get(g);
+            if (sum != 0) {
+                weights[g] = 1.0 / sum;
             }
         }
 
-        return transposed;
+        return weights;
     }
-}
-
+}
\ No newline at end of file
@@ -0,0 +1,88 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import java.util.Locale;
+
+/**
+ * The precision in which a {@link SparseRowMatrix} stores its values.
+ * The quantized precisions store each value as an unsigned integer that is
+ * multiplied by a per-row scale, the row's largest value divided by the
+ * largest integer; they suit non-negative values such as corating fractions.
+ */
+
+public enum ValuePrecision {
+    /**
+     * 64-bit floating point.
+     */
+    DOUBLE(8),
+    /**
+     * 32-bit floating point.
+     */
+    FLOAT(4),
+    /**
+     * 16-bit unsigned integers with a per-row scale.
+     */
+    SHORT(2),
+    /**
+     * 8-bit unsigned integers with a per-row scale.
+     */
+    BYTE(1);
+
+    private final int bytes;
+
+    ValuePrecision(int bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return The number of bytes taken by each value.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Whether values are stored as integers with a per-row scale.
+     */
+    public boolean isQuantized() {
+        return this == SHORT || this == BYTE;
+    }
+
+    /**
+     * @return The largest stored integer of a quantized precision.
+     */
+    int getMaxLevel() {
+        return (1 << (8 * bytes)) - 1;
+    }
+
+    /**
+     * Looks up a precision by name, ignoring case.
+     *
+     * @param name The name, such as {@code float}.
+     * @return The precision.
+     * @throws IllegalArgumentException if there is no precision of that name.
+     */
+    public static ValuePrecision fromName(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.api.Result;
+import org.lenskit.data.ratings.PreferenceDomain;
+import org.lenskit.data.ratings.Rating;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.grouplens.lenskit.hello.TestRatings.build;
+import static org.grouplens.lenskit.hello.TestRatings.dao;
+import static org.grouplens.lenskit.hello.TestRatings.genres;
+import static org.grouplens.lenskit.hello.TestRatings.randomRatings;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that {@link BatchRecommendationWriter} writes the recommendations of
+ * {@link HIRItemScorer} for every user.
+ */
+public class BatchRecommendationWriterTest {
+    private static final int USERS = 150;
+
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        output = File.createTempFile("recommendations", ".csv");
+    }
+
+    @After
+    public void tearDown() {
+        output.delete();
+    }
+
+    @Test
+    public void testWriteMatchesScorer() throws IOException {
+        Random random = new Random(37);
+        MapItemGenreDAO genres = genres(random);
+        List<Rating> ratings = randomRatings(random, 0, USERS, 1500);
+        HIRItemScorer scorer = new HIRItemScorer(dao(ratings), build(ratings, genres), genres,
+                                                 new PreferenceDomain(0, 1), 0.6, 0.3);
+        LongArrayList users = new LongArrayList();
+        for (long user = 0; user < USERS; user++) {
+            users.add(user);
+        }
+
+        assertEquals(USERS, new BatchRecommendationWriter(scorer, 3).write(users, 5, output));
+
+        Map<String, Double> written = new HashMap<>();
+        List<String> lines = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+        assertEquals("user,rank,item,score", lines.get(0));
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            written.put(fields[0] + "," + fields[1], Double.parseDouble(fields[3]));
+        }
+        int expected = 0;
+        for (long user = 0; user < USERS; user++) {
+            List<Result> recs = scorer.recommend(user, 5, null, null);
+            for (int r = 0; r < recs.size(); r++) {
+                Double score = written.get(user + "," + (r + 1));
+                assertNotNull("rank " + (r + 1) + " of user " + user, score);
+                assertEquals(recs.get(r).getScore(), score, 1e-12);
+                expected++;
+            }
+        }
+        assertEquals(expected, written.size());
+    }
+
+    /**
+     * A failed write must stop every worker, even those blocked on a full queue.
+     * The output is a pipe whose reader stops reading, so the workers fill the
+     * queue, and then goes away, so the writer fails.
+     */
+    @Test(timeout = 60000)
+    public void testFailedWriteStopsWorkers() throws Exception {
+        final File pipe = new File(output.getPath() + ".fifo");
+        Process mkfifo;
+        try {
+            mkfifo = new ProcessBuilder("mkfifo", pipe.getPath()).start();
+        } catch (IOException e) {
+            mkfifo = null;
+        }
+        assumeTrue(mkfifo != null && mkfifo.waitFor() == 0);
+        pipe.deleteOnExit();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try (FileInputStream in = new FileInputStream(pipe)) {
+                    Thread.sleep(2000);
+                } catch (IOException | InterruptedException e) {
+                    /* the writer sees the pipe close either way */
+                }
+            }
+        };
+        reader.start();
+
+        Random random = new Random(41);
+        MapItemGenreDAO genres = genres(random);
+        List<Rating> ratings = randomRatings(random, 0, 20 * USERS, 20000);
+        HIRItemScorer scorer = new HIRItemScorer(dao(ratings), build(ratings, genres), genres,
+                                                 new PreferenceDomain(0, 1), 0.6, 0.3);
+        LongArrayList users = new LongArrayList();
+        for (long user = 0; user < 20 * USERS; user++) {
+            users.add(user);
+        }
+
+        try {
+            new BatchRecommendationWriter(scorer, 2).write(users, 20, pipe);
+            fail("writing to a closed pipe should fail");
+        } catch (IOException e) {
+            /* expected */
+        } finally {
+            reader.join();
+            pipe.delete();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.ratings.Rating;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.grouplens.lenskit.hello.TestRatings.ITEMS;
+import static org.grouplens.lenskit.hello.TestRatings.build;
+import static org.grouplens.lenskit.hello.TestRatings.genres;
+import static org.grouplens.lenskit.hello.TestRatings.randomRatings;
+import static org.grouplens.lenskit.hello.TestRatings.userItems;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a model counted out of core by {@link ExternalCoratingMatrix} and
+ * written straight to a model file equals the one built in the heap.
+ */
+public class ExternalCoratingMatrixTest {
+    /**
+     * The smallest budget allowed, which spills often and merges two runs at a time.
+     */
+    private static final long BUDGET = 256 * 1024;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("hir-external").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testDoubleMatchesHeapBuild() throws IOException {
+        checkPrecision(ValuePrecision.DOUBLE);
+    }
+
+    @Test
+    public void testFloatMatchesHeapBuild() throws IOException {
+        checkPrecision(ValuePrecision.FLOAT);
+    }
+
+    @Test
+    public void testShortMatchesHeapBuild() throws IOException {
+        checkPrecision(ValuePrecision.SHORT);
+    }
+
+    @Test
+    public void testByteMatchesHeapBuild() throws IOException {
+        checkPrecision(ValuePrecision.BYTE);
+    }
+
+    @Test
+    public void testRejectOversizedMatrix() throws IOException {
+        File file = new File(directory, "model.bin");
+        try {
+            new HIRModelFile.MatrixWriter(file, new int[]{0, 600000000}, ValuePrecision.DOUBLE).close();
+            fail("a 4.8 GB value section should be rejected");
+        } catch (IOException e) {
+            /* expected */
+        }
+        assertFalse(new File(directory, "model.bin.tmp").exists());
+    }
+
+    private void checkPrecision(ValuePrecision precision) throws IOException {
+        Random random = new Random(precision.ordinal());
+        MapItemGenreDAO genres = genres(random);
+        List<Rating> ratings = randomRatings(random, 0, 600, 6000);
+        ItemIndex index = ItemIndex.fromItemIds(genres.getItemIds());
+        List<IntList> users = userItems(ratings, index);
+
+        HIRModel expected = build(ratings, genres).withPrecision(precision);
+        HIRModel actual = HIRModelBuilder.buildExternal(index, genres, users, 1, BUDGET, directory, precision);
+
+        SparseRowMatrix em = expected.getCoratingMatrix();
+        SparseRowMatrix am = actual.getCoratingMatrix();
+        assertEquals(precision, am.getPrecision());
+        assertEquals(em.getEntryCount(), am.getEntryCount());
+        assertArrayEquals(expected.getCoratingTotals(), actual.getCoratingTotals(), 0);
+        assertArrayEquals(expected.getGenreWeights(), actual.getGenreWeights(), 0);
+        for (int i = 0; i < ITEMS; i++) {
+            assertEquals("start of row " + i, em.rowStart(i), am.rowStart(i));
+            assertEquals("end of row " + i, em.rowEnd(i), am.rowEnd(i));
+            if (precision.isQuantized()) {
+                assertEquals("scale of row " + i, em.rowScale(i), am.rowScale(i), 0);
+            }
+            for (int pos = em.rowStart(i); pos < em.rowEnd(i); pos++) {
+                assertEquals(em.columnAt(pos), am.columnAt(pos));
+                assertEquals(em.valueAt(pos), am.valueAt(pos), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.junit.Test;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultMap;
+import org.lenskit.data.ratings.PreferenceDomain;
+import org.lenskit.data.ratings.Rating;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.grouplens.lenskit.hello.TestRatings.ITEMS;
+import static org.grouplens.lenskit.hello.TestRatings.build;
+import static org.grouplens.lenskit.hello.TestRatings.dao;
+import static org.grouplens.lenskit.hello.TestRatings.genres;
+import static org.grouplens.lenskit.hello.TestRatings.randomRatings;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that {@link HIRItemScorer} requests on one thread do not see each
+ * other's scratch buffers.
+ */
+public class HIRItemScorerTest {
+    private static final int USERS = 80;
+
+    @Test
+    public void testInterleavedRequestsAgree() {
+        Random random = new Random(11);
+        MapItemGenreDAO genres = genres(random);
+        List<Rating> ratings = randomRatings(random, 0, USERS, 800);
+        HIRItemScorer scorer = new HIRItemScorer(dao(ratings), build(ratings, genres), genres,
+                                                 new PreferenceDomain(0, 1), 0.6, 0.3);
+        List<Long> items = new ArrayList<>();
+        for (long item = 1; item <= ITEMS; item++) {
+            items.add(item);
+        }
+
+        List<List<Result>> first = new ArrayList<>();
+        for (long user = 0; user < USERS; user++) {
+            first.add(scorer.recommend(user, 10, null, null));
+        }
+        // the same requests again, in reverse and alternating with full scoring
+        for (long user = USERS - 1; user >= 0; user--) {
+            List<Result> recs = scorer.recommend(user, 10, null, null);
+            ResultMap scores = scorer.scoreWithDetails(user, items);
+            List<Result> expected = first.get((int) user);
+            assertEquals(expected.size(), recs.size());
+            for (int r = 0; r < recs.size(); r++) {
+                assertEquals(expected.get(r).getId(), recs.get(r).getId());
+                assertEquals(expected.get(r).getScore(), recs.get(r).getScore(), 1e-12);
+                Result full = scores.get(recs.get(r).getId());
+                assertNotNull(full);
+                assertEquals(recs.get(r).getScore(), full.getScore(), 1e-12);
+            }
+        }
+    }
+}
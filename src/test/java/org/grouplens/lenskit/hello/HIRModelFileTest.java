@@ -0,0 +1,97 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.grouplens.lenskit.hello.TestRatings.build;
+import static org.grouplens.lenskit.hello.TestRatings.genres;
+import static org.grouplens.lenskit.hello.TestRatings.randomRatings;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link HIRModelFile} reads back the models it writes, and rejects
+ * corrupt headers with an {@link IOException}.
+ */
+public class HIRModelFileTest {
+    private static final int ITEM_SIZE_POS = 8;
+    private static final int ENTRIES_POS = 16;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(13);
+        file = File.createTempFile("hir-model", ".bin");
+        HIRModelFile.write(build(randomRatings(random, 0, 30, 200), genres(random)), file);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        HIRModel model = HIRModelFile.load(file);
+        assertEquals(TestRatings.ITEMS, model.getItemCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNegativeCount() throws IOException {
+        writeInt(ITEM_SIZE_POS, -1);
+        HIRModelFile.load(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedFile() throws IOException {
+        writeInt(ENTRIES_POS, Integer.MAX_VALUE);
+        HIRModelFile.load(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testOversizedSection() throws IOException {
+        // 600M entries need 2.4 GB of columns; the file is extended sparsely to hold them
+        writeInt(ENTRIES_POS, 600000000);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(8L << 30);
+        }
+        HIRModelFile.load(file);
+    }
+
+    /**
+     * Overwrites a little-endian header field.
+     */
+    private void writeInt(long pos, int value) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(pos);
+            out.writeInt(Integer.reverseBytes(value));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.junit.Test;
+import org.lenskit.api.Result;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.ratings.PreferenceDomain;
+import org.lenskit.data.ratings.Rating;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import static org.grouplens.lenskit.hello.TestRatings.build;
+import static org.grouplens.lenskit.hello.TestRatings.dao;
+import static org.grouplens.lenskit.hello.TestRatings.genres;
+import static org.grouplens.lenskit.hello.TestRatings.randomRatings;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that a {@link HIRModelHolder} installs a rebuilt model together with the
+ * histories it was built from.
+ */
+public class HIRModelHolderTest {
+    private static final double DIRECT = 0.6;
+    private static final double PROXIMITY = 0.3;
+
+    @Test
+    public void testRebuildSwapsHistoriesWithModel() throws Exception {
+        Random random = new Random(23);
+        MapItemGenreDAO genres = genres(random);
+        List<Rating> before = randomRatings(random, 0, 30, 200);
+        final List<Rating> after = new ArrayList<>(before);
+        after.addAll(randomRatings(random, 20, 40, 150));
+
+        HIRModelHolder holder = new HIRModelHolder(build(before, genres));
+        HIRItemScorer served = new HIRItemScorer(dao(before), holder, genres,
+                                                 new PreferenceDomain(0, 1), DIRECT, PROXIMITY);
+        final UserEventDAO afterDao = dao(after);
+        final HIRModel afterModel = build(after, genres);
+        HIRModelHolder.Snapshot installed = holder.rebuild(new Callable<HIRModelHolder.Snapshot>() {
+            @Override
+            public HIRModelHolder.Snapshot call() {
+                return new HIRModelHolder.Snapshot(afterDao, afterModel);
+            }
+        }).get();
+
+        assertSame(installed, holder.current());
+        HIRItemScorer fresh = new HIRItemScorer(afterDao, afterModel, genres,
+                                                new PreferenceDomain(0, 1), DIRECT, PROXIMITY);
+        for (long user = 0; user < 40; user++) {
+            assertSameResults(fresh.recommend(user, 10, null, null), served.recommend(user, 10, null, null));
+        }
+    }
+
+    @Test
+    public void testUpdateSwapsHistoriesWithModel() throws Exception {
+        Random random = new Random(19);
+        MapItemGenreDAO genres = genres(random);
+        List<Rating> before = randomRatings(random, 0, 30, 200);
+        List<Rating> after = new ArrayList<>(before);
+        final List<Rating> batch = randomRatings(random, 20, 40, 150);
+        after.addAll(batch);
+
+        final HIRModelHolder holder = new HIRModelHolder(build(before, genres));
+        final UserEventDAO beforeDao = dao(before);
+        HIRItemScorer served = new HIRItemScorer(beforeDao, holder, genres,
+                                                 new PreferenceDomain(0, 1), DIRECT, PROXIMITY);
+        final UserEventDAO afterDao = dao(after);
+        holder.rebuild(new Callable<HIRModelHolder.Snapshot>() {
+            @Override
+            public HIRModelHolder.Snapshot call() {
+                return holder.current().update(beforeDao, batch, afterDao);
+            }
+        }).get();
+
+        assertSame(afterDao, holder.current().getDAO(beforeDao));
+        HIRItemScorer fresh = new HIRItemScorer(afterDao, build(after, genres), genres,
+                                                new PreferenceDomain(0, 1), DIRECT, PROXIMITY);
+        for (long user = 0; user < 40; user++) {
+            assertSameResults(fresh.recommend(user, 10, null, null), served.recommend(user, 10, null, null));
+        }
+    }
+
+    @Test
+    public void testSwapClearsCache() {
+        Random random = new Random(29);
+        MapItemGenreDAO genres = genres(random);
+        List<Rating> ratings = randomRatings(random, 0, 20, 100);
+        HIRModel model = build(ratings, genres);
+        RecommendationCache cache = new RecommendationCache(100, 3600);
+        HIRModelHolder holder = new HIRModelHolder(model, cache);
+        cache.put(1, 10, model, 1, new ArrayList<Result>());
+        assertEquals(1, cache.size());
+
+        holder.swap(new HIRModelHolder.Snapshot(dao(ratings), build(ratings, genres)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInitialSnapshotUsesInjectedHistories() {
+        Random random = new Random(31);
+        List<Rating> ratings = randomRatings(random, 0, 20, 100);
+        HIRModelHolder holder = new HIRModelHolder(build(ratings, genres(random)));
+        UserEventDAO dao = dao(ratings);
+        assertSame(dao, holder.current().getDAO(dao));
+        assertSame(holder.get(), holder.current().getModel());
+    }
+
+    private static void assertSameResults(List<Result> expected, List<Result> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); k++) {
+            assertEquals(expected.get(k).getId(), actual.get(k).getId());
+            assertEquals(expected.get(k).getScore(), actual.get(k).getScore(), 0);
+        }
+    }
+}
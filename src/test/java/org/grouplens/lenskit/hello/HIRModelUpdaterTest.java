@@ -0,0 +1,159 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.junit.Test;
+import org.lenskit.data.ratings.Rating;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.grouplens.lenskit.hello.TestRatings.ITEMS;
+import static org.grouplens.lenskit.hello.TestRatings.build;
+import static org.grouplens.lenskit.hello.TestRatings.dao;
+import static org.grouplens.lenskit.hello.TestRatings.genres;
+import static org.grouplens.lenskit.hello.TestRatings.randomRatings;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that applying a batch of ratings with {@link HIRModelUpdater} gives
+ * the model a full build over the combined ratings would.
+ */
+public class HIRModelUpdaterTest {
+    @Test
+    public void testUpdateMatchesRebuild() {
+        Random random = new Random(42);
+        List<Rating> before = randomRatings(random, 0, 60, 400);
+        List<Rating> batch = randomRatings(random, 40, 80, 150);
+        List<Rating> combined = new ArrayList<>(before);
+        combined.addAll(batch);
+
+        MapItemGenreDAO genres = genres(random);
+        HIRModel updated = new HIRModelUpdater(dao(before)).update(build(before, genres), batch);
+        assertSameModel(build(combined, genres), updated);
+    }
+
+    @Test
+    public void testRepeatedUpdatesMatchRebuild() {
+        Random random = new Random(7);
+        MapItemGenreDAO genres = genres(random);
+        List<Rating> seen = randomRatings(random, 0, 30, 200);
+        HIRModel model = build(seen, genres);
+        for (int round = 0; round < 5; round++) {
+            List<Rating> batch = randomRatings(random, 0, 50, 40);
+            model = new HIRModelUpdater(dao(seen)).update(model, batch);
+            seen = new ArrayList<>(seen);
+            seen.addAll(batch);
+        }
+        assertSameModel(build(seen, genres), model);
+    }
+
+    @Test
+    public void testRepeatedRatingLeavesModel() {
+        Random random = new Random(3);
+        List<Rating> before = randomRatings(random, 0, 20, 100);
+        HIRModel model = build(before, genres(random));
+        Rating again = before.get(0);
+        List<Rating> batch = new ArrayList<>();
+        batch.add(Rating.create(again.getUserId(), again.getItemId(), 1, 0));
+        assertSame(model, new HIRModelUpdater(dao(before)).update(model, batch));
+    }
+
+    @Test
+    public void testConvertedUpdateMatchesRebuild() {
+        Random random = new Random(11);
+        List<Rating> before = randomRatings(random, 0, 60, 400);
+        List<Rating> batch = randomRatings(random, 30, 70, 150);
+        List<Rating> combined = new ArrayList<>(before);
+        combined.addAll(batch);
+
+        MapItemGenreDAO genres = genres(random);
+        HIRModel updated = new HIRModelUpdater(dao(before)).update(build(before, genres), batch);
+        assertSameModel(build(combined, genres).withPrecision(ValuePrecision.BYTE),
+                        updated.withPrecision(ValuePrecision.BYTE));
+    }
+
+    @Test
+    public void testAddedRatingsMatchRebuild() {
+        Random random = new Random(13);
+        List<Rating> before = randomRatings(random, 0, 40, 300);
+        List<Rating> after = new ArrayList<>(before);
+        after.addAll(randomRatings(random, 20, 60, 120));
+        // a changed value of an item the user already rated is not a new rating
+        Rating again = before.get(0);
+        after.add(Rating.create(again.getUserId(), again.getItemId(), 1, 0));
+
+        MapItemGenreDAO genres = genres(random);
+        List<Rating> added = HIRModelUpdater.addedRatings(dao(before), dao(after));
+        assertNotNull(added);
+        for (Rating r : added) {
+            assertFalse(r.getUserId() == again.getUserId() && r.getItemId() == again.getItemId());
+        }
+        HIRModel updated = new HIRModelUpdater(dao(before)).update(build(before, genres), added);
+        assertSameModel(build(after, genres), updated);
+    }
+
+    @Test
+    public void testRemovedRatingNeedsRebuild() {
+        Random random = new Random(17);
+        List<Rating> before = randomRatings(random, 0, 20, 100);
+        List<Rating> after = new ArrayList<>(before);
+        Rating removed = after.remove(0);
+        for (Iterator<Rating> iter = after.iterator(); iter.hasNext(); ) {
+            Rating r = iter.next();
+            if (r.getUserId() == removed.getUserId() && r.getItemId() == removed.getItemId()) {
+                iter.remove();
+            }
+        }
+        assertNull(HIRModelUpdater.addedRatings(dao(before), dao(after)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectQuantizedModel() {
+        Random random = new Random(5);
+        List<Rating> before = randomRatings(random, 0, 20, 100);
+        HIRModel model = build(before, genres(random)).withPrecision(ValuePrecision.SHORT);
+        new HIRModelUpdater(dao(before)).update(model, randomRatings(random, 0, 30, 20));
+    }
+
+    private static void assertSameModel(HIRModel expected, HIRModel actual) {
+        SparseRowMatrix em = expected.getCoratingMatrix();
+        SparseRowMatrix am = actual.getCoratingMatrix();
+        assertEquals(em.getPrecision(), am.getPrecision());
+        assertArrayEquals(expected.getCoratingTotals(), actual.getCoratingTotals(), 0);
+        for (int i = 0; i < ITEMS; i++) {
+            assertEquals("size of row " + i,
+                         em.rowEnd(i) - em.rowStart(i), am.rowEnd(i) - am.rowStart(i));
+            for (int k = 0; k < em.rowEnd(i) - em.rowStart(i); k++) {
+                assertEquals(em.columnAt(em.rowStart(i) + k), am.columnAt(am.rowStart(i) + k));
+                assertEquals(em.valueAt(em.rowStart(i) + k), am.valueAt(am.rowStart(i) + k), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.api.Result;
+import org.lenskit.data.ratings.PreferenceDomain;
+import org.lenskit.data.ratings.Rating;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.grouplens.lenskit.hello.TestRatings.build;
+import static org.grouplens.lenskit.hello.TestRatings.dao;
+import static org.grouplens.lenskit.hello.TestRatings.genres;
+import static org.grouplens.lenskit.hello.TestRatings.randomRatings;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that recommending through {@link ShardServer}s on the loopback interface
+ * gives the recommendations of a single {@link HIRItemScorer}.
+ */
+public class ShardedRecommenderTest {
+    private static final double DIRECT = 0.6;
+    private static final double PROXIMITY = 0.3;
+    private static final int USERS = 50;
+
+    private List<Rating> ratings;
+    private HIRItemScorer scorer;
+    private List<ShardServer> servers;
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(17);
+        ratings = randomRatings(random, 0, USERS, 600);
+        MapItemGenreDAO genres = genres(random);
+        HIRModel model = build(ratings, genres);
+        scorer = new HIRItemScorer(dao(ratings), model, genres, new PreferenceDomain(0, 1), DIRECT, PROXIMITY);
+
+        servers = new ArrayList<>();
+        for (int shard = 0; shard < 3; shard++) {
+            ShardServer server = new ShardServer(new HIRShard(model, shard, 3), 0);
+            server.start();
+            servers.add(server);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (ShardServer server : servers) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testShardsMatchScorer() throws IOException {
+        try (ShardedRecommender sharded = new ShardedRecommender(dao(ratings), addresses(), DIRECT, PROXIMITY)) {
+            for (long user = 0; user < USERS + 2; user++) {
+                for (int n : new int[]{1, 5, 20}) {
+                    assertSameRecommendations(scorer.recommend(user, n, null, null),
+                                              sharded.recommend(user, n));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLargeCountReturnsCatalog() throws IOException {
+        try (ShardedRecommender sharded = new ShardedRecommender(dao(ratings), addresses(), DIRECT, PROXIMITY)) {
+            assertSameRecommendations(scorer.recommend(3, 1000, null, null),
+                                      sharded.recommend(3, Integer.MAX_VALUE));
+        }
+    }
+
+    private List<InetSocketAddress> addresses() {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (ShardServer server : servers) {
+            addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        }
+        return addresses;
+    }
+
+    /**
+     * Compares two top-N lists. Scores must match at every rank; the items must match
+     * too, except that items tied at the lowest score may be any of the tied items.
+     */
+    private static void assertSameRecommendations(List<Result> expected, List<Result> actual) {
+        assertEquals(expected.size(), actual.size());
+        if (expected.isEmpty()) {
+            return;
+        }
+        final double cutoff = expected.get(expected.size() - 1).getScore();
+        Set<Long> expectedItems = new HashSet<>();
+        Set<Long> actualItems = new HashSet<>();
+        for (int k = 0; k < expected.size(); k++) {
+            assertEquals("score at rank " + k, expected.get(k).getScore(), actual.get(k).getScore(), 1e-12);
+            if (expected.get(k).getScore() > cutoff) {
+                expectedItems.add(expected.get(k).getId());
+            }
+            if (actual.get(k).getScore() > cutoff) {
+                actualItems.add(actual.get(k).getId());
+            }
+        }
+        assertEquals(expectedItems, actualItems);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectRBTreeMap;
+import it.unimi.dsi.fastutil.longs.LongRBTreeSet;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.lenskit.data.ratings.Rating;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random ratings and genres over a small catalog, and the DAOs and models built from them.
+ */
+final class TestRatings {
+    static final int ITEMS = 40;
+    static final int GENRES = 5;
+
+    private TestRatings() {
+    }
+
+    /**
+     * Generates ratings of random items by users in a range; some pairs repeat.
+     */
+    static List<Rating> randomRatings(Random random, int firstUser, int endUser, int count) {
+        List<Rating> ratings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ratings.add(Rating.create(firstUser + random.nextInt(endUser - firstUser),
+                                      1 + random.nextInt(ITEMS), 1 + random.nextInt(5), i));
+        }
+        return ratings;
+    }
+
+    static MapItemGenreDAO genres(Random random) {
+        long[] ids = new long[ITEMS];
+        long[] bits = new long[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            ids[i] = i + 1;
+            bits[i] = 1L << random.nextInt(GENRES) | 1L << random.nextInt(GENRES);
+        }
+        return new MapItemGenreDAO(ids, bits, GENRES);
+    }
+
+    static HIRModel build(List<Rating> ratings, MapItemGenreDAO genres) {
+        ItemIndex index = ItemIndex.fromItemIds(genres.getItemIds());
+        return HIRModelBuilder.build(index, genres, userItems(ratings, index), 1);
+    }
+
+    /**
+     * Lists the indexes of the items rated by each user, in ascending order.
+     */
+    static List<IntList> userItems(List<Rating> ratings, ItemIndex index) {
+        List<IntList> users = new ArrayList<>();
+        for (LongSortedSet items : byUser(ratings).values()) {
+            IntList indexes = new IntArrayList();
+            for (long item : items) {
+                indexes.add(index.indexOf(item));
+            }
+            users.add(indexes);
+        }
+        return users;
+    }
+
+    /**
+     * Lays out ratings in the columns of a {@link ColumnarRatingDAO}.
+     */
+    static ColumnarRatingDAO dao(List<Rating> ratings) {
+        Long2ObjectMap<List<Rating>> byUser = new Long2ObjectRBTreeMap<>();
+        for (Rating r : ratings) {
+            List<Rating> history = byUser.get(r.getUserId());
+            if (history == null) {
+                history = new ArrayList<>();
+                byUser.put(r.getUserId(), history);
+            }
+            history.add(r);
+        }
+        long[] userIds = byUser.keySet().toLongArray();
+        int[] offsets = new int[userIds.length + 1];
+        long[] items = new long[ratings.size()];
+        double[] values = new double[ratings.size()];
+        long[] timestamps = new long[ratings.size()];
+        int row = 0;
+        for (int u = 0; u < userIds.length; u++) {
+            offsets[u] = row;
+            for (Rating r : byUser.get(userIds[u])) {
+                items[row] = r.getItemId();
+                values[row] = r.getValue();
+                timestamps[row] = r.getTimestamp();
+                row++;
+            }
+        }
+        offsets[userIds.length] = row;
+        return new ColumnarRatingDAO(userIds, IntBuffer.wrap(offsets), LongBuffer.wrap(items),
+                                     DoubleBuffer.wrap(values), LongBuffer.wrap(timestamps));
+    }
+
+    static Long2ObjectMap<LongSortedSet> byUser(List<Rating> ratings) {
+        Long2ObjectMap<LongSortedSet> byUser = new Long2ObjectRBTreeMap<>();
+        for (Rating r : ratings) {
+            LongSortedSet items = byUser.get(r.getUserId());
+            if (items == null) {
+                items = new LongRBTreeSet();
+                byUser.put(r.getUserId(), items);
+            }
+            items.add(r.getItemId());
+        }
+        return byUser;
+    }
+}